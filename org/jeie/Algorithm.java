@@ -24,213 +24,963 @@
 
 package org.jeie;
 
-import java.awt.Dimension;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.image.BufferedImage;
-import java.util.ArrayDeque;
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.Set;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jeie.Canvas.RenderMode;
 
 public class Algorithm
 	{
+	/** Shared pool for running image kernels in parallel. */
+	static final ForkJoinPool POOL = new ForkJoinPool();
+	private static final ThreadLocal<Job> JOB = new ThreadLocal<Job>();
+
+	/**
+	 * Tracks the progress of the kernels started by one thread, and lets another thread
+	 * cancel them. Kernels check for cancellation before each piece of work they split into,
+	 * and throw a CancellationException once it is set.
+	 * @see Algorithm#setJob(Job)
+	 */
+	public static class Job
+		{
+		private volatile boolean cancelled;
+		private final AtomicLong done = new AtomicLong(), total = new AtomicLong();
+
+		public void cancel()
+			{
+			cancelled = true;
+			}
+
+		public boolean isCancelled()
+			{
+			return cancelled;
+			}
+
+		/**
+		 * @return The fraction of the work started so far which is done, from 0 to 1.
+		 * A kernel starting adds to the work, so this can go down as well as up.
+		 */
+		public float getProgress()
+			{
+			long t = total.get();
+			return t == 0 ? 0 : (float) done.get() / t;
+			}
+
+		void check()
+			{
+			if (cancelled) throw new CancellationException();
+			}
+
+		void advance(long work)
+			{
+			done.addAndGet(work);
+			}
+		}
+
+	/**
+	 * Sets the job which kernels started by the calling thread report to, until it is set to null.
+	 */
+	public static void setJob(Job job)
+		{
+		if (job == null)
+			JOB.remove();
+		else
+			JOB.set(job);
+		}
+
+	/**
+	 * Adds work to the calling thread's job, if it has one, and checks that it was not cancelled.
+	 * @param work The number of pixels the kernel about to start will process.
+	 * @return The job, to be passed to the kernel's tasks, or null.
+	 */
+	static Job startJob(long work)
+		{
+		Job job = JOB.get();
+		if (job != null)
+			{
+			job.check();
+			job.total.addAndGet(work);
+			}
+		return job;
+		}
+
+	/**
+	 * Returns the ARGB pixels of an image as a row-major array, one int per pixel,
+	 * with a scanline stride equal to the image width. For plain TYPE_INT_ARGB
+	 * images this is the backing array itself, so writes go straight to the image;
+	 * otherwise it is a copy.
+	 */
+	public static int[] getPixels(BufferedImage img)
+		{
+		if (hasPixelArray(img))
+			return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		int w = img.getWidth(), h = img.getHeight();
+		return img.getRGB(0,0,w,h,null,0,w);
+		}
+
+	/**
+	 * @return Whether getPixels would return the backing array of this image, rather than a copy.
+	 */
+	public static boolean hasPixelArray(BufferedImage img)
+		{
+		if (img.getType() != BufferedImage.TYPE_INT_ARGB) return false;
+		WritableRaster r = img.getRaster();
+		if (r.getSampleModelTranslateX() != 0 || r.getSampleModelTranslateY() != 0) return false;
+		if (!(r.getSampleModel() instanceof SinglePixelPackedSampleModel)) return false;
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) r.getSampleModel();
+		return sm.getScanlineStride() == img.getWidth() && r.getDataBuffer().getNumBanks() == 1
+				&& r.getDataBuffer().getOffset() == 0;
+		}
+
+	/**
+	 * Returns an image to write a kernel's output to: <code>dst</code> if it is non-null and
+	 * the right size, or else a new TYPE_INT_ARGB image.
+	 */
+	static BufferedImage getDestination(BufferedImage dst, int w, int h)
+		{
+		if (dst != null && dst.getWidth() == w && dst.getHeight() == h) return dst;
+		return new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+		}
+
+	/**
+	 * Stores pixels obtained from <code>getPixels(dst)</code> back into dst,
+	 * if they were not its backing array to begin with.
+	 */
+	static void setPixels(BufferedImage dst, int[] pixels)
+		{
+		if (hasPixelArray(dst)) return;
+		int w = dst.getWidth();
+		dst.setRGB(0,0,w,dst.getHeight(),pixels,0,w);
+		}
+
+	/**
+	 * A kernel which processes a band of rows independently of any other band.
+	 */
+	interface RowKernel
+		{
+		void run(int y0, int y1);
+		}
+
+	/**
+	 * Runs a kernel over rows 0 to h, split into bands which run in parallel.
+	 * @param w The width of each row, used to keep bands from being too small to be worth splitting.
+	 */
+	static void forEachBand(RowKernel k, int w, int h)
+		{
+		POOL.invoke(new Bands(k,0,h,w,startJob((long) w * h)));
+		}
+
+	static class Bands extends RecursiveAction
+		{
+		private static final long serialVersionUID = 1L;
+
+		final RowKernel kernel;
+		final int y0, y1, w;
+		final Job job;
+
+		Bands(RowKernel kernel, int y0, int y1, int w, Job job)
+			{
+			this.kernel = kernel;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.w = w;
+			this.job = job;
+			}
+
+		@Override
+		protected void compute()
+			{
+			if (y1 - y0 <= Math.max(1,(1 << 16) / Math.max(1,w)))
+				{
+				if (job != null) job.check();
+				kernel.run(y0,y1);
+				if (job != null) job.advance((long) (y1 - y0) * w);
+				return;
+				}
+			int mid = (y0 + y1) >>> 1;
+			invokeAll(new Bands(kernel,y0,mid,w,job),new Bands(kernel,mid,y1,w,job));
+			}
+		}
+
+	/**
+	 * An operation on single pixels, which does not depend on their neighbours,
+	 * so that several can be fused into one pass over an image.
+	 */
+	public static interface PointOp
+		{
+		/** @return The ARGB pixel which the given ARGB pixel becomes. */
+		public int filter(int argb);
+		}
+
+	/**
+	 * A PointOp which maps the red, green and blue channels each through its own
+	 * 256-entry table, leaving alpha alone. Consecutive ChannelOps are composed
+	 * into a single set of tables when fused.
+	 */
+	public static interface ChannelOp extends PointOp
+		{
+		/** @return The red, green and blue tables, in that order. */
+		public int[][] getTables();
+		}
+
+	/**
+	 * Creates the 256-entry tables of a ChannelOp which treats each color channel the same.
+	 */
+	public static int[][] channelTables(int[] table)
+		{
+		return new int[][] { table,table,table };
+		}
+
+	/**
+	 * Applies a list of point operations to every pixel of an image in a single pass, in parallel
+	 * bands of rows. Runs of ChannelOps are composed into one lookup per channel first.
+	 * @param dst The image to write into, or null to create one. May be src itself.
+	 * @return The filtered image.
+	 */
+	public static BufferedImage applyPointOps(BufferedImage src, BufferedImage dst, List<? extends PointOp> ops)
+		{
+		final int w = src.getWidth(), h = src.getHeight();
+		dst = getDestination(dst,w,h);
+		final int[] in = getPixels(src);
+		final int[] out = dst == src ? in : getPixels(dst);
+		final PointOp[] stages = fusePointOps(ops);
+		forEachBand(new RowKernel()
+			{
+				public void run(int y0, int y1)
+					{
+					for (int i = y0 * w; i < y1 * w; i++)
+						{
+						int p = in[i];
+						for (PointOp op : stages)
+							p = op.filter(p);
+						out[i] = p;
+						}
+					}
+			},w,h);
+		setPixels(dst,out);
+		return dst;
+		}
+
+	private static PointOp[] fusePointOps(List<? extends PointOp> ops)
+		{
+		List<PointOp> stages = new ArrayList<PointOp>();
+		int[][] tables = null;
+		for (PointOp op : ops)
+			{
+			if (!(op instanceof ChannelOp))
+				{
+				if (tables != null) stages.add(new TableOp(tables));
+				tables = null;
+				stages.add(op);
+				continue;
+				}
+			int[][] next = ((ChannelOp) op).getTables();
+			if (tables == null)
+				{
+				tables = next;
+				continue;
+				}
+			int[][] composed = new int[3][256];
+			for (int c = 0; c < 3; c++)
+				for (int v = 0; v < 256; v++)
+					composed[c][v] = next[c][tables[c][v]];
+			tables = composed;
+			}
+		if (tables != null) stages.add(new TableOp(tables));
+		return stages.toArray(new PointOp[stages.size()]);
+		}
+
+	static final class TableOp implements ChannelOp
+		{
+		final int[] r, g, b;
+
+		TableOp(int[][] tables)
+			{
+			r = tables[0];
+			g = tables[1];
+			b = tables[2];
+			}
+
+		public int filter(int p)
+			{
+			return (p & 0xFF000000) | (r[(p >> 16) & 0xFF] << 16) | (g[(p >> 8) & 0xFF] << 8) | b[p & 0xFF];
+			}
+
+		public int[][] getTables()
+			{
+			return new int[][] { r,g,b };
+			}
+		}
+
+	/**
+	 * Blurs an image with a <code>size</code> x <code>size</code> box filter.
+	 * <p>
+	 * The box is separable, so each strip of columns first takes sliding-window sums along
+	 * its rows, then slides a window down those sums; every pixel costs the same whatever
+	 * the size. Strips are blurred in parallel. Colors are averaged premultiplied by alpha,
+	 * so transparent pixels do not darken their neighbours.
+	 * <p>
+	 * The box covers <code>x - size / 2</code> to <code>x + (size - 1) / 2</code>, like a
+	 * ConvolveOp kernel of the same size, and pixels within <code>size / 2</code> of the
+	 * edge are copied unchanged, like ConvolveOp.EDGE_NO_OP.
+	 * @param dst The image to blur into, or null to create one. Must not be src.
+	 * @return The blurred image.
+	 */
+	public static BufferedImage boxBlur(BufferedImage src, BufferedImage dst, int size)
+		{
+		int w = src.getWidth(), h = src.getHeight();
+		dst = getDestination(dst,w,h);
+		int[] in = getPixels(src);
+		int[] out = getPixels(dst);
+		System.arraycopy(in,0,out,0,w * h);
+
+		int lo = size / 2, hi = (size - 1) / 2;
+		if (size > 1 && w > 2 * lo && h > 2 * lo)
+			POOL.invoke(new BoxBlur(in,out,w,h,lo,hi,lo,w - lo,startJob((long) (w - 2 * lo) * h)));
+		setPixels(dst,out);
+		return dst;
+		}
+
+	static class BoxBlur extends RecursiveAction
+		{
+		private static final long serialVersionUID = 1L;
+		static final int STRIP = 64;
+
+		final int[] in, out;
+		final int w, h, lo, hi;
+		final int x0, x1;
+		final Job job;
+
+		BoxBlur(int[] in, int[] out, int w, int h, int lo, int hi, int x0, int x1, Job job)
+			{
+			this.in = in;
+			this.out = out;
+			this.w = w;
+			this.h = h;
+			this.lo = lo;
+			this.hi = hi;
+			this.x0 = x0;
+			this.x1 = x1;
+			this.job = job;
+			}
+
+		@Override
+		protected void compute()
+			{
+			if (x1 - x0 > STRIP)
+				{
+				int mid = x0 + Math.max(1,(x1 - x0) / STRIP / 2) * STRIP;
+				invokeAll(new BoxBlur(in,out,w,h,lo,hi,x0,mid,job),new BoxBlur(in,out,w,h,lo,hi,mid,x1,job));
+				return;
+				}
+			if (job != null) job.check();
+			int sw = x1 - x0, k = lo + hi + 1, rowSums = sw * 4;
+			// premultiplied horizontal sums, 4 channels per column, for the k rows the box covers,
+			// each kept in slot (y % k), and their totals down each column
+			int[] rows = new int[k * rowSums];
+			int[] cols = new int[rowSums];
+			for (int y = 0; y < k; y++)
+				{
+				sumRow(y,rows,y * rowSums);
+				for (int i = 0; i < rowSums; i++)
+					cols[i] += rows[y * rowSums + i];
+				}
+
+			int n = k * k;
+			for (int y = lo;; y++)
+				{
+				int o = y * w + x0;
+				for (int i = 0; i < rowSums; i += 4)
+					out[o++] = unpremultiply(cols[i],cols[i + 1],cols[i + 2],cols[i + 3],n);
+				if (y + lo + 1 == h) break;
+				// the row leaving the box and the row entering it share a slot
+				int e = (y - lo) % k * rowSums;
+				for (int i = 0; i < rowSums; i++)
+					cols[i] -= rows[e + i];
+				sumRow(y + hi + 1,rows,e);
+				for (int i = 0; i < rowSums; i++)
+					cols[i] += rows[e + i];
+				}
+			if (job != null) job.advance((long) sw * h);
+			}
+
+		/**
+		 * Computes the premultiplied sums of the box across each column of the strip in one row.
+		 */
+		private void sumRow(int y, int[] sums, int o)
+			{
+			int row = y * w;
+			int a = 0, r = 0, g = 0, b = 0;
+			for (int x = x0 - lo; x <= x0 + hi; x++)
+				{
+				int p = in[row + x];
+				int pa = p >>> 24;
+				a += pa;
+				r += premultiply((p >> 16) & 0xFF,pa);
+				g += premultiply((p >> 8) & 0xFF,pa);
+				b += premultiply(p & 0xFF,pa);
+				}
+			for (int x = x0;; x++)
+				{
+				sums[o++] = a;
+				sums[o++] = r;
+				sums[o++] = g;
+				sums[o++] = b;
+				if (x + 1 == x1) break;
+				int p = in[row + x + hi + 1];
+				int pa = p >>> 24;
+				a += pa;
+				r += premultiply((p >> 16) & 0xFF,pa);
+				g += premultiply((p >> 8) & 0xFF,pa);
+				b += premultiply(p & 0xFF,pa);
+				p = in[row + x - lo];
+				pa = p >>> 24;
+				a -= pa;
+				r -= premultiply((p >> 16) & 0xFF,pa);
+				g -= premultiply((p >> 8) & 0xFF,pa);
+				b -= premultiply(p & 0xFF,pa);
+				}
+			}
+
+		static int premultiply(int c, int a)
+			{
+			return (c * a + 127) / 255;
+			}
+
+		/** Converts sums of n premultiplied pixels back to their average, as a non-premultiplied pixel. */
+		static int unpremultiply(int a, int r, int g, int b, int n)
+			{
+			if (a == 0) return 0;
+			int oa = (a + n / 2) / n;
+			long half = a / 2;
+			int or = (int) Math.min(255,(r * 255L + half) / a);
+			int og = (int) Math.min(255,(g * 255L + half) / a);
+			int ob = (int) Math.min(255,(b * 255L + half) / a);
+			return (oa << 24) | (or << 16) | (og << 8) | ob;
+			}
+		}
+
+	/**
+	 * Reduces part of an image to half its size, averaging each 2x2 block of pixels
+	 * weighted by alpha. Blocks on an odd right or bottom edge average only the pixels they cover.
+	 * @param dst An image half the size of src, rounded up.
+	 * @param r The region of dst to compute.
+	 */
+	public static void halve(BufferedImage src, BufferedImage dst, Rectangle r)
+		{
+		final int sw = src.getWidth(), sh = src.getHeight(), dw = dst.getWidth();
+		final int x0 = Math.max(0,r.x), x1 = Math.min(dw,r.x + r.width);
+		final int y0 = Math.max(0,r.y), y1 = Math.min(dst.getHeight(),r.y + r.height);
+		if (x0 >= x1 || y0 >= y1) return;
+		final int[] in = getPixels(src);
+		final int[] out = getPixels(dst);
+		forEachBand(new RowKernel()
+			{
+				public void run(int b0, int b1)
+					{
+					for (int y = y0 + b0; y < y0 + b1; y++)
+						for (int x = x0; x < x1; x++)
+							{
+							int a = 0, cr = 0, cg = 0, cb = 0, n = 0;
+							for (int sy = 2 * y; sy < Math.min(sh,2 * y + 2); sy++)
+								for (int sx = 2 * x; sx < Math.min(sw,2 * x + 2); sx++)
+									{
+									int p = in[sy * sw + sx];
+									int pa = p >>> 24;
+									a += pa;
+									cr += BoxBlur.premultiply((p >> 16) & 0xFF,pa);
+									cg += BoxBlur.premultiply((p >> 8) & 0xFF,pa);
+									cb += BoxBlur.premultiply(p & 0xFF,pa);
+									n++;
+									}
+							out[y * dw + x] = BoxBlur.unpremultiply(a,cr,cg,cb,n);
+							}
+					}
+			},x1 - x0,y1 - y0);
+		setPixels(dst,out);
+		}
+
+	/**
+	 * Mirrors an image left to right by reversing each row.
+	 * @param dst The image to flip into, or null to create one. May be src to flip it in place.
+	 * @return The flipped image.
+	 */
+	public static BufferedImage flipHorizontal(BufferedImage src, BufferedImage dst)
+		{
+		final int w = src.getWidth(), h = src.getHeight();
+		dst = getDestination(dst,w,h);
+		final int[] in = getPixels(src);
+		final int[] out = dst == src ? in : getPixels(dst);
+		forEachBand(new RowKernel()
+			{
+				public void run(int y0, int y1)
+					{
+					for (int y = y0; y < y1; y++)
+						{
+						int l = y * w, r = l + w - 1;
+						if (in == out)
+							for (; l < r; l++, r--)
+								{
+								int p = out[l];
+								out[l] = out[r];
+								out[r] = p;
+								}
+						else
+							for (int x = 0; x < w; x++)
+								out[l + x] = in[r - x];
+						}
+					}
+			},w,h);
+		setPixels(dst,out);
+		return dst;
+		}
+
+	/**
+	 * Mirrors an image top to bottom by swapping whole rows.
+	 * @param dst The image to flip into, or null to create one. May be src to flip it in place.
+	 * @return The flipped image.
+	 */
+	public static BufferedImage flipVertical(BufferedImage src, BufferedImage dst)
+		{
+		final int w = src.getWidth(), h = src.getHeight();
+		dst = getDestination(dst,w,h);
+		final int[] in = getPixels(src);
+		final int[] out = dst == src ? in : getPixels(dst);
+		if (in == out)
+			forEachBand(new RowKernel()
+				{
+					public void run(int y0, int y1)
+						{
+						int[] row = new int[w];
+						for (int y = y0; y < y1; y++)
+							{
+							int a = y * w, b = (h - 1 - y) * w;
+							System.arraycopy(out,a,row,0,w);
+							System.arraycopy(out,b,out,a,w);
+							System.arraycopy(row,0,out,b,w);
+							}
+						}
+				},w,h / 2);
+		else
+			for (int y = 0; y < h; y++)
+				System.arraycopy(in,y * w,out,(h - 1 - y) * w,w);
+		setPixels(dst,out);
+		return dst;
+		}
+
+	/**
+	 * Transforms an image with bilinear sampling, like an AffineTransformOp with
+	 * TYPE_BILINEAR, but in parallel over tiles of the destination. Each destination
+	 * pixel is mapped back through the inverse transform and interpolated from the four
+	 * nearest source pixels, weighted by alpha. Pixels which map outside of the source
+	 * are left transparent.
+	 * <p>
+	 * When the transform maps pixels exactly onto pixels, such as a rotation by a multiple
+	 * of 90 degrees about a point on the pixel grid, they are copied without interpolation.
+	 * @param dst The image to transform into, or null to create one. It is the same size as
+	 * src, and must not be src.
+	 * @return The transformed image.
+	 */
+	public static BufferedImage transform(BufferedImage src, BufferedImage dst, AffineTransform tr)
+		{
+		int w = src.getWidth(), h = src.getHeight();
+		dst = getDestination(dst,w,h);
+		int[] out = getPixels(dst);
+		AffineTransform inv;
+		try
+			{
+			inv = tr.createInverse();
+			}
+		catch (NoninvertibleTransformException e)
+			{
+			Arrays.fill(out,0,w * h,0);
+			setPixels(dst,out);
+			return dst;
+			}
+		// map destination pixel centers to source pixel centers
+		inv.translate(0.5,0.5);
+		AffineTransform m = AffineTransform.getTranslateInstance(-0.5,-0.5);
+		m.concatenate(inv);
+		double[] mat = new double[6];
+		m.getMatrix(mat);
+
+		POOL.invoke(new Transform(getPixels(src),out,w,h,mat,0,0,w,h,startJob((long) w * h)));
+		setPixels(dst,out);
+		return dst;
+		}
+
+	static class Transform extends RecursiveAction
+		{
+		private static final long serialVersionUID = 1L;
+		static final int TILE = 64;
+		static final double EPSILON = 1e-9;
+
+		final int[] in, out;
+		final int w, h;
+		/** The flat matrix from destination pixels to source pixels, as from AffineTransform.getMatrix. */
+		final double[] m;
+		final int x0, y0, x1, y1;
+		final Job job;
+
+		Transform(int[] in, int[] out, int w, int h, double[] m, int x0, int y0, int x1, int y1, Job job)
+			{
+			this.in = in;
+			this.out = out;
+			this.w = w;
+			this.h = h;
+			this.m = m;
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.job = job;
+			}
+
+		@Override
+		protected void compute()
+			{
+			if (x1 - x0 > TILE && x1 - x0 >= y1 - y0)
+				{
+				int mid = x0 + Math.max(1,(x1 - x0) / TILE / 2) * TILE;
+				invokeAll(new Transform(in,out,w,h,m,x0,y0,mid,y1,job),new Transform(in,out,w,h,m,mid,y0,x1,y1,job));
+				return;
+				}
+			if (y1 - y0 > TILE)
+				{
+				int mid = y0 + Math.max(1,(y1 - y0) / TILE / 2) * TILE;
+				invokeAll(new Transform(in,out,w,h,m,x0,y0,x1,mid,job),new Transform(in,out,w,h,m,x0,mid,x1,y1,job));
+				return;
+				}
+			if (job != null) job.check();
+			if (isExact())
+				copy();
+			else
+				interpolate();
+			if (job != null) job.advance((long) (x1 - x0) * (y1 - y0));
+			}
+
+		private static boolean isInteger(double d)
+			{
+			return Math.abs(d - Math.rint(d)) < EPSILON;
+			}
+
+		/**
+		 * @return Whether every destination pixel maps exactly onto a source pixel.
+		 */
+		private boolean isExact()
+			{
+			for (double d : m)
+				if (!isInteger(d)) return false;
+			return true;
+			}
+
+		private void copy()
+			{
+			int dxx = (int) Math.rint(m[0]), dxy = (int) Math.rint(m[1]);
+			int dyx = (int) Math.rint(m[2]), dyy = (int) Math.rint(m[3]);
+			int ox = (int) Math.rint(m[4]), oy = (int) Math.rint(m[5]);
+			for (int y = y0; y < y1; y++)
+				{
+				int sx = ox + dxx * x0 + dyx * y, sy = oy + dxy * x0 + dyy * y;
+				int o = y * w + x0;
+				for (int x = x0; x < x1; x++, sx += dxx, sy += dxy)
+					out[o++] = sx >= 0 && sx < w && sy >= 0 && sy < h ? in[sy * w + sx] : 0;
+				}
+			}
+
+		private void interpolate()
+			{
+			// source coordinates in 16.16 fixed point
+			long du = Math.round(m[0] * 65536), dv = Math.round(m[1] * 65536);
+			long maxU = ((long) w << 16) - (1 << 15), maxV = ((long) h << 16) - (1 << 15);
+			for (int y = y0; y < y1; y++)
+				{
+				long u = Math.round((m[0] * x0 + m[2] * y + m[4]) * 65536);
+				long v = Math.round((m[1] * x0 + m[3] * y + m[5]) * 65536);
+				int o = y * w + x0;
+				for (int x = x0; x < x1; x++, u += du, v += dv)
+					out[o++] = u <= -(1 << 15) || u >= maxU || v <= -(1 << 15) || v >= maxV ? 0 : sample(u,v);
+				}
+			}
+
+		/**
+		 * Samples the source at a fixed point position where pixel centers lie on whole coordinates.
+		 */
+		private int sample(long u, long v)
+			{
+			int sx = (int) (u >> 16), sy = (int) (v >> 16);
+			int fx = (int) (u >> 8) & 0xFF, fy = (int) (v >> 8) & 0xFF;
+			int sx0 = Math.max(sx,0), sx1 = Math.min(sx + 1,w - 1);
+			int sy0 = Math.max(sy,0), sy1 = Math.min(sy + 1,h - 1);
+
+			int w00 = (256 - fx) * (256 - fy), w10 = fx * (256 - fy), w01 = (256 - fx) * fy, w11 = fx * fy;
+			int p00 = in[sy0 * w + sx0], p10 = in[sy0 * w + sx1], p01 = in[sy1 * w + sx0], p11 = in[sy1 * w + sx1];
+			if ((p00 & p10 & p01 & p11) >>> 24 == 0xFF)
+				{
+				int r = ((p00 >> 16) & 0xFF) * w00 + ((p10 >> 16) & 0xFF) * w10 + ((p01 >> 16) & 0xFF) * w01
+						+ ((p11 >> 16) & 0xFF) * w11;
+				int g = ((p00 >> 8) & 0xFF) * w00 + ((p10 >> 8) & 0xFF) * w10 + ((p01 >> 8) & 0xFF) * w01
+						+ ((p11 >> 8) & 0xFF) * w11;
+				int b = (p00 & 0xFF) * w00 + (p10 & 0xFF) * w10 + (p01 & 0xFF) * w01 + (p11 & 0xFF) * w11;
+				return 0xFF000000 | ((r + (1 << 15)) >> 16 << 16) | ((g + (1 << 15)) >> 16 << 8) | ((b + (1 << 15)) >> 16);
+				}
+			// weight each pixel by its alpha, so transparent pixels do not darken their neighbours
+			w00 = (p00 >>> 24) * w00 >> 8;
+			w10 = (p10 >>> 24) * w10 >> 8;
+			w01 = (p01 >>> 24) * w01 >> 8;
+			w11 = (p11 >>> 24) * w11 >> 8;
+			int a = w00 + w10 + w01 + w11;
+			int r = ((p00 >> 16) & 0xFF) * w00 + ((p10 >> 16) & 0xFF) * w10 + ((p01 >> 16) & 0xFF) * w01
+					+ ((p11 >> 16) & 0xFF) * w11;
+			int g = ((p00 >> 8) & 0xFF) * w00 + ((p10 >> 8) & 0xFF) * w10 + ((p01 >> 8) & 0xFF) * w01
+					+ ((p11 >> 8) & 0xFF) * w11;
+			int b = (p00 & 0xFF) * w00 + (p10 & 0xFF) * w10 + (p01 & 0xFF) * w01 + (p11 & 0xFF) * w11;
+			if (a == 0) return 0;
+			int oa = (a + 128) >> 8;
+			int half = a >> 1;
+			int or = Math.min(255,(r + half) / a);
+			int og = Math.min(255,(g + half) / a);
+			int ob = Math.min(255,(b + half) / a);
+			return (oa << 24) | (or << 16) | (og << 8) | ob;
+			}
+		}
 
 	/** 
 	 * A class to calculate a set of points which match (in color comparison
 	 * and spatial contiguity) a given point on a canvas. Useful for flood-fill
 	 * operations and magic wand selection.
+	 * <p>
+	 * The result is a bitmask of the source image, one bit per pixel. Each row
+	 * starts on a fresh word, so pixel (x,y) is bit <code>x & 63</code> of
+	 * <code>mask[y * stride + (x >> 6)]</code>.
 	 * @author IsmAvatar
 	 */
 	public static class FloodFill
 		{
 		//input
-		BufferedImage source;
+		int width, height;
+		int[] pixels;
 		int targetRGB;
+		int targetA, targetR, targetG, targetB;
 		int threshold;
+		boolean tiled;
 
 		//output
-		public Set<Point> set = new HashSet<Point>();
+		public long[] mask;
+		public int stride;
 		public int minX = Integer.MAX_VALUE, minY = minX, maxX = 0, maxY = 0;
 
+		//span stack of (x,y) seeds
+		private int[] stack = new int[64];
+		private int sp;
+
+		/**
+		 * @param threshold The tolerance, from 0 to 255. A pixel matches when each of its
+		 * channels (alpha included) is within this much of the target pixel's.
+		 */
 		FloodFill(Canvas c, BufferedImage source, Point p, int threshold)
 			{
-			this.source = source;
+			width = source.getWidth();
+			height = source.getHeight();
+			stride = (width + 63) >> 6;
+			mask = new long[stride * height];
 			this.threshold = threshold;
-			if (p.x < 0 || p.y < 0 || p.x >= source.getWidth() || p.y >= source.getHeight()) return;
-			targetRGB = source.getRGB(p.x,p.y);
-			floodFill(p,c);
+			tiled = c.renderMode == RenderMode.TILED;
+			if (p.x < 0 || p.y < 0 || p.x >= width || p.y >= height) return;
+			pixels = getPixels(source);
+			targetRGB = pixels[p.y * width + p.x];
+			targetA = targetRGB >>> 24;
+			targetR = (targetRGB >> 16) & 0xFF;
+			targetG = (targetRGB >> 8) & 0xFF;
+			targetB = targetRGB & 0xFF;
+			floodFill(p.x,p.y);
+			pixels = null;
+			stack = null;
 			}
 
-		protected void floodFill(Point start, Canvas c)
+		public boolean contains(int x, int y)
 			{
-			// Create a queue of points to fill around
-			Queue<Point> q = new ArrayDeque<Point>();
-			// Bounds checking
-			if (start.x < 0 || start.y < 0 || start.x >= source.getWidth()
-					|| start.y >= source.getHeight())
-				{
-				if (c.renderMode != RenderMode.TILED) return;
-				System.out.print("out of bounds\n");
-				start = new Point((start.x + source.getWidth()) % source.getWidth(),
-						(start.y + source.getHeight()) % source.getHeight());
-				}
+			return (mask[y * stride + (x >> 6)] & (1L << x)) != 0;
+			}
 
-			q.add(start);
-			while (!q.isEmpty())
+		/** @return Whether nothing was filled. */
+		public boolean isEmpty()
+			{
+			return maxX < minX;
+			}
+
+		protected void floodFill(int sx, int sy)
+			{
+			push(sx,sy);
+			while (sp > 0)
 				{
-				Point n = q.remove();
-				if (!needsFill(n)) continue;
-				Point w = new Point(n), e = new Point(n);
-				do
-					w.x--;
-				while (needsFill(w));
-				do
-					e.x++;
-				while (needsFill(e));
+				int y = stack[--sp];
+				int x = stack[--sp];
+				if (!needsFill(x,y)) continue;
+
+				// Find the span of fillable pixels around the seed
+				int l = x, r = x;
+				while (l > 0 && needsFill(l - 1,y))
+					l--;
+				while (r < width - 1 && needsFill(r + 1,y))
+					r++;
+				fillSpan(y,l,r);
 
-				w.x++;
-				if (w.x < minX) minX = w.x;
-				if (e.x - 1 > maxX) maxX = e.x - 1;
-				if (n.y < minY) minY = n.y;
-				if (n.y > maxY) maxY = n.y;
+				if (l < minX) minX = l;
+				if (r > maxX) maxX = r;
+				if (y < minY) minY = y;
+				if (y > maxY) maxY = y;
 
-				if (c.renderMode != RenderMode.TILED)
+				if (y > 0)
+					scanRow(l,r,y - 1);
+				else if (tiled) scanRow(l,r,height - 1);
+				if (y < height - 1)
+					scanRow(l,r,y + 1);
+				else if (tiled) scanRow(l,r,0);
+
+				if (tiled)
 					{
-					for (int x = w.x; x < e.x; x++)
-						set.add(new Point(x,n.y));
-					if (n.y - 1 >= 0) for (int x = w.x; x < e.x; x++)
-						if (needsFillInBound(new Point(x,n.y - 1))) q.add(new Point(x,n.y - 1));
-					if (n.y + 1 < source.getHeight()) for (int x = w.x; x < e.x; x++)
-						if (needsFillInBound(new Point(x,n.y + 1))) q.add(new Point(x,n.y + 1));
+					// Wrap horizontally
+					if (l == 0 && needsFill(width - 1,y)) push(width - 1,y);
+					if (r == width - 1 && needsFill(0,y)) push(0,y);
 					}
-				else
-					{
-					for (int x = w.x; x < e.x; x++)
-						set.add(new Point(x,n.y));
+				}
+			}
 
-					// Wrap horizontally
-					if (w.x == 0)
-						{
-						Point wrap_p = new Point(maxX = source.getWidth() - 1,w.y);
-						if (needsFillInBound(wrap_p)) q.add(wrap_p);
-						}
-					else if (e.x == source.getWidth())
-						{
-						Point wrap_p = new Point(minX = 0,e.y);
-						if (needsFillInBound(wrap_p)) q.add(wrap_p);
-						}
+		/** Pushes one seed for each run of fillable pixels in row y between l and r. */
+		private void scanRow(int l, int r, int y)
+			{
+			for (int x = l; x <= r; x++)
+				{
+				if (!needsFill(x,y)) continue;
+				push(x,y);
+				while (x < r && needsFill(x + 1,y))
+					x++;
+				}
+			}
 
-					// Wrap vertically
-					if (n.y - 1 >= 0)
-						for (int x = w.x; x < e.x; x++)
-							{
-							if (needsFillInBound(new Point(x,n.y - 1))) q.add(new Point(x,n.y - 1));
-							}
-					else
-						{
-						int h1 = source.getHeight() - 1;
-						for (int x = w.x; x < e.x; x++)
-							if (needsFillInBound(new Point(x,h1))) q.add(new Point(x,h1));
-						}
+		private void fillSpan(int y, int l, int r)
+			{
+			int row = y * stride;
+			int lw = l >> 6, rw = r >> 6;
+			long lm = -1L << l, rm = -1L >>> (63 - (r & 63));
+			if (lw == rw)
+				{
+				mask[row + lw] |= lm & rm;
+				return;
+				}
+			mask[row + lw] |= lm;
+			for (int i = lw + 1; i < rw; i++)
+				mask[row + i] = -1L;
+			mask[row + rw] |= rm;
+			}
 
-					if (n.y + 1 < source.getHeight())
-						for (int x = w.x; x < e.x; x++)
-							{
-							if (needsFillInBound(new Point(x,n.y + 1))) q.add(new Point(x,n.y + 1));
-							}
-					else
-						for (int x = w.x; x < e.x; x++)
-							if (needsFillInBound(new Point(x,0))) q.add(new Point(x,0));
-					}
+		private void push(int x, int y)
+			{
+			if (sp + 2 > stack.length)
+				{
+				int[] ns = new int[stack.length << 1];
+				System.arraycopy(stack,0,ns,0,sp);
+				stack = ns;
 				}
+			stack[sp++] = x;
+			stack[sp++] = y;
 			}
 
-		protected boolean needsFillInBound(Point p)
+		protected boolean needsFill(int x, int y)
 			{
 			// Return false if we've already filled this pixel
-			if (set.contains(p)) return false;
+			if ((mask[y * stride + (x >> 6)] & (1L << x)) != 0) return false;
 			// Return whether this pixel matches the color we're filling
-			return source.getRGB(p.x,p.y) == targetRGB; // TODO: Add threshold here
+			return matches(pixels[y * width + x]);
 			}
 
-		protected boolean needsFill(Point p)
+		/**
+		 * Whether a pixel is within the threshold of the target color on every channel.
+		 * The four channel tests are folded into a single sign check rather than branching per channel.
+		 */
+		protected boolean matches(int rgb)
 			{
-			if (p.x < 0 || p.y < 0 || p.x >= source.getWidth() || p.y >= source.getHeight())
-				return false;
-			return needsFillInBound(p);
+			if (threshold == 0) return rgb == targetRGB;
+			int da = (rgb >>> 24) - targetA;
+			int dr = ((rgb >> 16) & 0xFF) - targetR;
+			int dg = ((rgb >> 8) & 0xFF) - targetG;
+			int db = (rgb & 0xFF) - targetB;
+			// absolute values, without branching
+			da = (da ^ (da >> 31)) - (da >> 31);
+			dr = (dr ^ (dr >> 31)) - (dr >> 31);
+			dg = (dg ^ (dg >> 31)) - (dg >> 31);
+			db = (db ^ (db >> 31)) - (db >> 31);
+			return ((threshold - da) | (threshold - dr) | (threshold - dg) | (threshold - db)) >= 0;
 			}
 		}
 
+	/**
+	 * Finds the pixels of a FloodFill which border on pixels outside of it,
+	 * in the same bitmask layout as the fill. Neighbours are tested a word
+	 * at a time, by shifting the rows above, below and around each word into
+	 * place and ANDing them together, so 64 pixels are classified at once.
+	 */
 	public static class EdgeDetect
 		{
-		public Set<Point> set = new HashSet<Point>();
+		public long[] mask;
+		public int stride;
 
 		public EdgeDetect(FloodFill body, Canvas cv)
 			{
-			if (cv.renderMode != RenderMode.TILED)
-				for (Point p : body.set)
-					{
-					Point c = new Point(p.x,p.y);
-					c.x -= 1;
-					if (!body.set.contains(c))
-						{
-						set.add(p);
-						continue;
-						}
-					c.x += 2;
-					if (!body.set.contains(c))
-						{
-						set.add(p);
-						continue;
-						}
-					c.x -= 1;
-					c.y -= 1;
-					if (!body.set.contains(c))
-						{
-						set.add(p);
-						continue;
-						}
-					c.y += 2;
-					if (!body.set.contains(c))
-						{
-						set.add(p);
-						continue;
-						}
-					}
-			else
-				for (Point p : body.set)
+			stride = body.stride;
+			mask = new long[body.mask.length];
+			if (body.isEmpty()) return;
+			long[] m = body.mask;
+			int w = body.width, h = body.height;
+			boolean tiled = cv.renderMode == RenderMode.TILED;
+			int first = body.minX >> 6, last = body.maxX >> 6;
+			// bit of the last pixel in a row, within the last word of that row
+			int lastWord = stride - 1;
+			long lastBit = 1L << (w - 1);
+
+			for (int y = body.minY; y <= body.maxY; y++)
+				{
+				int row = y * stride;
+				int up = y > 0 ? row - stride : tiled ? (h - 1) * stride : -1;
+				int down = y < h - 1 ? row + stride : tiled ? 0 : -1;
+				for (int i = first; i <= last; i++)
 					{
-					Dimension is = cv.getImageSize();
-					Point c = new Point(p.x,p.y);
-					c.x = (c.x + is.width - 1) % is.width;
-					if (!body.set.contains(c))
-						{
-						set.add(p);
-						continue;
-						}
-					c.x = (c.x + is.width + 2) % is.width;
-					if (!body.set.contains(c))
-						{
-						set.add(p);
-						continue;
-						}
-					c.x = p.x;
-					c.y = (c.y + is.height - 1) % is.height;
-					if (!body.set.contains(c))
-						{
-						set.add(p);
-						continue;
-						}
-					c.y = (c.y + is.height + 2) % is.height;
-					if (!body.set.contains(c))
-						{
-						set.add(p);
-						continue;
-						}
+					long cur = m[row + i];
+					if (cur == 0) continue;
+
+					long left = cur << 1;
+					if (i > 0)
+						left |= m[row + i - 1] >>> 63;
+					else if (tiled && (m[row + lastWord] & lastBit) != 0) left |= 1L;
+
+					long right = cur >>> 1;
+					if (i < lastWord)
+						right |= m[row + i + 1] << 63;
+					else if (tiled && (m[row] & 1L) != 0) right |= lastBit;
+
+					long vert = up < 0 || down < 0 ? 0 : m[up + i] & m[down + i];
+					mask[row + i] = cur & ~(left & right & vert);
 					}
+				}
 			}
 
+		public boolean contains(int x, int y)
+			{
+			return (mask[y * stride + (x >> 6)] & (1L << x)) != 0;
+			}
 		}
 	}
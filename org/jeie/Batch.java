@@ -0,0 +1,240 @@
+/**
+* @file  Batch.java
+* @brief Headless entry point which applies a pipeline of effects to a directory of images.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package org.jeie;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Applies the same effects and transformations as the editor's menus to every image
+ * in a directory, without opening a window. Usage:
+ * <pre>
+ * java -cp jeie.jar org.jeie.Batch [-threads N] &lt;input dir&gt; &lt;output dir&gt; &lt;operation&gt;...
+ * </pre>
+ * Operations are applied in the order given, and take their argument after an equals sign,
+ * on the same scale as the editor's dialogs:
+ * <code>blur=3 saturation=150 value=-5 invert fade=128 rotate=90 zoom=50 fliph flipv</code>.
+ * <p>
+ * Images are decoded, processed and encoded on a fixed number of threads, and at most a few
+ * images per thread are queued at once, so memory use does not grow with the number of files.
+ * Like the editor, results are saved as PNG, under the name of the source file with its
+ * extension replaced. Files whose results would have the same name are reported and skipped.
+ */
+public class Batch
+	{
+	final List<ImageOp> steps;
+	final File outDir;
+	final AtomicInteger failed = new AtomicInteger();
+
+	public Batch(List<ImageOp> steps, File outDir)
+		{
+		this.steps = steps;
+		this.outDir = outDir;
+		}
+
+	/**
+	 * Parses one operation, such as <code>blur=3</code> or <code>invert</code>, into the action
+	 * the editor's menu would apply. The action has no canvas, so it can only be applied as an ImageOp.
+	 * @throws IllegalArgumentException if the operation or its argument is invalid.
+	 */
+	static ImageOp parseStep(String op)
+		{
+		int eq = op.indexOf('=');
+		String name = (eq == -1 ? op : op.substring(0,eq)).toLowerCase();
+		int arg = eq == -1 ? 0 : Integer.parseInt(op.substring(eq + 1));
+		if (name.equals("invert")) return new EffectsMenu.Invert(null);
+		if (name.equals("fliph")) return new TransformMenu.FlipH(null);
+		if (name.equals("flipv")) return new TransformMenu.FlipV(null);
+		if (eq == -1) throw new IllegalArgumentException("Unknown operation or missing argument: " + op);
+		if (name.equals("blur")) return new EffectsMenu.Blur(null,arg);
+		if (name.equals("saturation")) return new EffectsMenu.Saturation(null,arg);
+		if (name.equals("value")) return new EffectsMenu.Value(null,(arg + 10) / 10f);
+		if (name.equals("fade")) return new EffectsMenu.Fade(null,Color.BLACK,arg / 256f);
+		if (name.equals("rotate")) return new TransformMenu.Rotate(null,arg);
+		if (name.equals("zoom")) return new TransformMenu.Zoom(null,arg);
+		throw new IllegalArgumentException("Unknown operation " + op);
+		}
+
+	/**
+	 * @return The name of the file the result of processing the given file is saved as.
+	 */
+	static String getOutputName(File in)
+		{
+		String name = in.getName();
+		if (name.contains(".")) name = name.substring(0,name.lastIndexOf('.'));
+		return name + ".png";
+		}
+
+	/**
+	 * Reads, processes and writes one file, reporting any failure rather than throwing it.
+	 */
+	void process(File in, File dest)
+		{
+		try
+			{
+			BufferedImage src = ImageIO.read(in);
+			if (src == null)
+				{
+				System.err.println("Not an image: " + in);
+				failed.incrementAndGet();
+				return;
+				}
+			BufferedImage img = new BufferedImage(src.getWidth(),src.getHeight(),
+					BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = img.createGraphics();
+			g.drawImage(src,0,0,null);
+			g.dispose();
+			// each step writes into the image the step before it read, so the pipeline needs two at most
+			BufferedImage spare = null;
+			for (ImageOp op : steps)
+				{
+				BufferedImage out = op.apply(img,spare);
+				spare = img;
+				img = out;
+				}
+
+			ImageIO.write(img,"PNG",dest);
+			}
+		catch (IOException e)
+			{
+			System.err.println("Failed to process " + in + ": " + e.getMessage());
+			failed.incrementAndGet();
+			}
+		catch (RuntimeException e)
+			{
+			System.err.println("Failed to process " + in + ": " + e);
+			failed.incrementAndGet();
+			}
+		}
+
+	/**
+	 * Processes every file in a directory, and waits for them all to finish.
+	 * @return The number of files which could not be processed.
+	 */
+	public int run(File inDir, int threads) throws InterruptedException
+		{
+		File[] files = inDir.listFiles();
+		if (files == null) throw new IllegalArgumentException("Not a directory: " + inDir);
+		// sorted, so that which of two files with the same output is skipped does not vary
+		Arrays.sort(files);
+		// a full queue makes the submitting thread process the file itself, which bounds
+		// the number of images in memory at once
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads,threads,0,TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 2),new ThreadPoolExecutor.CallerRunsPolicy());
+		// files are processed concurrently, so two writing the same output would race
+		Map<String,File> outputs = new HashMap<String,File>();
+		for (final File f : files)
+			{
+			if (!f.isFile()) continue;
+			String name = getOutputName(f);
+			File other = outputs.get(name);
+			if (other != null)
+				{
+				System.err.println("Skipping " + f + ": its result would overwrite that of " + other);
+				failed.incrementAndGet();
+				continue;
+				}
+			outputs.put(name,f);
+			final File out = new File(outDir,name);
+			pool.execute(new Runnable()
+				{
+					public void run()
+						{
+						process(f,out);
+						}
+				});
+			}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE,TimeUnit.DAYS);
+		return failed.get();
+		}
+
+	private static void usage()
+		{
+		System.err.println("Usage: java org.jeie.Batch [-threads N] <input dir> <output dir> <operation>...");
+		System.err.println("Operations: blur=N saturation=N value=N invert fade=N rotate=N zoom=N fliph flipv");
+		System.exit(2);
+		}
+
+	public static void main(String[] args) throws InterruptedException
+		{
+		System.setProperty("java.awt.headless","true"); //$NON-NLS-1$ //$NON-NLS-2$
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		int i = 0;
+		try
+			{
+			if (args.length > 1 && args[0].equals("-threads"))
+				{
+				threads = Math.max(1,Integer.parseInt(args[1]));
+				i = 2;
+				}
+			}
+		catch (NumberFormatException e)
+			{
+			usage();
+			}
+		if (args.length - i < 3) usage();
+
+		File inDir = new File(args[i++]);
+		File outDir = new File(args[i++]);
+		if (!inDir.isDirectory())
+			{
+			System.err.println("Not a directory: " + inDir);
+			System.exit(1);
+			}
+		List<ImageOp> steps = new ArrayList<ImageOp>();
+		try
+			{
+			for (; i < args.length; i++)
+				steps.add(parseStep(args[i]));
+			}
+		catch (IllegalArgumentException e)
+			{
+			System.err.println(e.getMessage());
+			usage();
+			}
+		if (!outDir.isDirectory() && !outDir.mkdirs())
+			{
+			System.err.println("Cannot create " + outDir);
+			System.exit(1);
+			}
+
+		int failed = new Batch(steps,outDir).run(inDir,threads);
+		System.exit(failed == 0 ? 0 : 1);
+		}
+	}
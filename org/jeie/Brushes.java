@@ -0,0 +1,122 @@
+/**
+* @file  Brushes.java
+* @brief Shared strokes and stamp masks for drawing tools, cached by diameter.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package org.jeie;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+
+/**
+ * Strokes are immutable, so every action drawing with the same diameter can share one
+ * instance instead of creating its own on every paint.
+ */
+public class Brushes
+	{
+	/** The largest diameter for which a round brush is stamped rather than stroked. */
+	public static final int MAX_STAMP = 16;
+
+	private static final HashMap<Integer,BasicStroke> round = new HashMap<Integer,BasicStroke>();
+	private static final HashMap<Integer,BasicStroke> square = new HashMap<Integer,BasicStroke>();
+	private static final HashMap<Integer,int[]> masks = new HashMap<Integer,int[]>();
+
+	/**
+	 * @return A stroke with round caps and joins, as used by the paintbrush.
+	 */
+	public static synchronized BasicStroke getRound(int diameter)
+		{
+		BasicStroke s = round.get(diameter);
+		if (s == null)
+			{
+			s = new BasicStroke(diameter,BasicStroke.CAP_ROUND,BasicStroke.JOIN_ROUND);
+			round.put(diameter,s);
+			}
+		return s;
+		}
+
+	/**
+	 * @return A stroke with the default square caps and mitered joins, as used by lines.
+	 */
+	public static synchronized BasicStroke getSquare(int diameter)
+		{
+		BasicStroke s = square.get(diameter);
+		if (s == null)
+			{
+			s = new BasicStroke(diameter);
+			square.put(diameter,s);
+			}
+		return s;
+		}
+
+	/**
+	 * Gets the pixels covered by a single dot of the round stroke, so that a line can be
+	 * drawn by stamping it along the path instead of going through the stroker.
+	 * The mask is taken from what the stroke itself draws, so a stamped dot is identical
+	 * to a stroked one.
+	 * @return The mask as one span per row: triples of the row, first and last column,
+	 * all relative to the center of the dot. Null if the diameter exceeds MAX_STAMP.
+	 */
+	public static synchronized int[] getRoundMask(int diameter)
+		{
+		if (diameter > MAX_STAMP) return null;
+		int[] mask = masks.get(diameter);
+		if (mask == null)
+			{
+			mask = makeMask(getRound(diameter),diameter);
+			masks.put(diameter,mask);
+			}
+		return mask;
+		}
+
+	private static int[] makeMask(BasicStroke s, int diameter)
+		{
+		int c = diameter + 2, size = c * 2 + 1;
+		BufferedImage img = new BufferedImage(size,size,BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = img.createGraphics();
+		g.setColor(Color.BLACK);
+		g.setStroke(s);
+		g.drawLine(c,c,c,c);
+		g.dispose();
+
+		int[] spans = new int[size * 3];
+		int n = 0;
+		for (int y = 0; y < size; y++)
+			{
+			int x0 = -1, x1 = -1;
+			for (int x = 0; x < size; x++)
+				if (img.getRGB(x,y) != 0)
+					{
+					if (x0 == -1) x0 = x;
+					x1 = x;
+					}
+			if (x0 == -1) continue;
+			spans[n++] = y - c;
+			spans[n++] = x0 - c;
+			spans[n++] = x1 - c;
+			}
+		int[] mask = new int[n];
+		System.arraycopy(spans,0,mask,0,n);
+		return mask;
+		}
+	}
@@ -25,32 +25,91 @@
 
 package org.jeie;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Paint;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.TexturePaint;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
 
 import javax.swing.JLabel;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
 
-public class Canvas extends JLabel
+public class Canvas extends JLabel implements Scrollable
 	{
 	private static final long serialVersionUID = 1L;
-	private BufferedImage raster, cache, grid;
+	private BufferedImage raster, cache, composite, scratch, overlay;
 	public ImageAction active;
 
 	public ArrayDeque<ImageAction> acts, redoActs;
 	private int zoom = 1, curAct;
+	/** Number of times the image is halved for display, when zoomed out past actual size. */
+	private int shrink;
+	public static final int MAX_SHRINK = 3;
+	/** Incremented whenever the cache (or the raster beneath it) changes. */
+	private int cacheVersion, compositeVersion = -1;
 	public boolean isGridDrawn = true;
 	public boolean usesCheckeredBackground = true;
 	public Color transBack1 = Color.white;
 	public Color transBack2 = Color.lightGray;
 	public Dimension trSize = new Dimension(8, 8);
 	public final boolean invertGrid = true;
-	private Dimension prevSize;
+	private TexturePaint checker;
+	private Color checkerBack1, checkerBack2;
+
+	/** Number of actions between cache checkpoints. */
+	public int checkpointInterval = 16;
+	/**
+	 * Maximum number of bytes spent on cache checkpoints. Oldest checkpoints are dropped first,
+	 * those after slow actions only once no others are left, and the latest is always kept.
+	 */
+	public long checkpointBudget = 64L << 20;
+	private ArrayList<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+	/** The checkpoint image the cache was last restored from or saved to, or null if it was cleared. */
+	private TiledImage dirtyBase;
+	/** The region of the cache painted since it matched <code>dirtyBase</code>, or null if unknown. */
+	private Rectangle dirty = new Rectangle();
+	/** Reductions of the composite image by successive powers of two, for drawing while zoomed out. */
+	private ArrayList<BufferedImage> mipmaps = new ArrayList<BufferedImage>();
+	private int mipVersion = -1;
+	/** The region of the composite changed since the mipmaps were last updated, or null if unknown. */
+	private Rectangle mipDirty;
+	/** Whether the raster showed beneath the cache when the mipmaps were last marked dirty. */
+	private boolean rasterDrawn = true;
+
+	/**
+	 * A tiled copy of the cache, taken after the first <code>index</code> actions
+	 * were painted, so that redrawing the cache need not replay the history from the start.
+	 * Tiles which did not change since the previous checkpoint are shared with it.
+	 */
+	private static class Checkpoint
+		{
+		final int index;
+		/** The last action painted into this checkpoint, used to check it is still valid. */
+		final ImageAction last;
+		final TiledImage image;
+
+		Checkpoint(int index, ImageAction last, TiledImage image)
+			{
+			this.index = index;
+			this.last = last;
+			this.image = image;
+			}
+		}
 
 	public enum RenderMode
 		{
@@ -71,29 +130,101 @@ public class Canvas extends JLabel
 		acts = new ArrayDeque<ImageAction>();
 		redoActs = new ArrayDeque<ImageAction>();
 		cache = new BufferedImage(raster.getWidth(),raster.getHeight(),BufferedImage.TYPE_INT_ARGB);
-		prevSize = getSize();
+		}
+
+	/**
+	 * Changes how the canvas is drawn. Tiled mode also changes how bounded actions are
+	 * painted, since they wrap around the edges, so switching into or out of it drops the
+	 * checkpoints and mipmaps rendered the old way and replays the history the new way.
+	 */
+	public void setRenderMode(RenderMode mode)
+		{
+		boolean rewrap = (mode == RenderMode.TILED) != (renderMode == RenderMode.TILED);
+		renderMode = mode;
+		if (rewrap)
+			{
+			checkpoints.clear();
+			dirtyBase = null;
+			dirty = null;
+			mipDirty = null;
+			redrawCache();
+			}
+		repaint();
 		}
 
 	public void setImage(BufferedImage image)
 		{
 		raster = image;
+		cacheVersion++;
 		acts.clear();
 		redoActs.clear();
+		checkpoints.clear();
 		redrawCache();
+		mipDirty = null;
 		}
 
+	/**
+	 * Returns a copy of the image as currently rendered, raster and cache combined.
+	 * @see #getCompositeImage()
+	 */
 	public BufferedImage getRenderImage()
 		{
 		BufferedImage img = new BufferedImage(raster.getWidth(),raster.getHeight(),
 				BufferedImage.TYPE_INT_ARGB);
-		Graphics2D g = img.createGraphics();
-		
+		getCompositeImage().copyData(img.getRaster());
+		return img;
+		}
+
+	/**
+	 * Returns the raster combined with the cache as painted so far. While the history is
+	 * being replayed, this is the image produced by the actions before the current one.
+	 * <p>
+	 * The image is owned by the canvas and only recomposited when the cache has changed,
+	 * so it must not be modified or held onto. Use <code>getRenderImage</code> for a copy.
+	 */
+	public BufferedImage getCompositeImage()
+		{
+		if (composite == null || composite.getWidth() != raster.getWidth()
+				|| composite.getHeight() != raster.getHeight())
+			{
+			composite = new BufferedImage(raster.getWidth(),raster.getHeight(),BufferedImage.TYPE_INT_ARGB);
+			compositeVersion = -1;
+			}
+		if (compositeVersion == cacheVersion) return composite;
+
+		Graphics2D g = composite.createGraphics();
+		g.setComposite(AlphaComposite.Src);
 		if (shouldDrawRaster())
+			{
 			g.drawImage(raster,0,0,null);
+			g.setComposite(AlphaComposite.SrcOver);
+			}
 		g.drawImage(cache,0,0,null);
-
 		g.dispose();
-		return img;
+		compositeVersion = cacheVersion;
+		return composite;
+		}
+
+	/**
+	 * Returns an image the size of the canvas, which actions may use as working space
+	 * while they paint, such as the output of an effect before it is drawn onto the cache.
+	 * Its contents are undefined, and it is handed out again to the next action.
+	 */
+	public BufferedImage getScratchImage()
+		{
+		if (scratch == null || scratch.getWidth() != raster.getWidth()
+				|| scratch.getHeight() != raster.getHeight())
+			scratch = new BufferedImage(raster.getWidth(),raster.getHeight(),BufferedImage.TYPE_INT_ARGB);
+		return scratch;
+		}
+
+	/**
+	 * @return A number which changes whenever the image painted so far changes,
+	 * so that work based on an earlier image can tell it is out of date.
+	 */
+	public int getVersion()
+		{
+		return cacheVersion;
 		}
 
 	public Dimension getImageSize()
@@ -116,46 +247,417 @@ public class Canvas extends JLabel
 			{
 			case NORMAL:
 			default:
-				return new Dimension(cache.getWidth() * zoom + 1,cache.getHeight() * zoom + 1);
+				return new Dimension(scaled(cache.getWidth()) + 1,scaled(cache.getHeight()) + 1);
 			case SCALED:
-				return new Dimension((cache.getWidth() * zoom + 1) * 7 / 4,cache.getHeight() * zoom + 1);
+				Rectangle r = getPreviewBounds(2);
+				return new Dimension(r.x + r.width + 1,scaled(cache.getHeight()) + 1);
 			case TILED:
-				return new Dimension((cache.getWidth() * zoom + 1) * 4,(cache.getHeight() * zoom + 1) * 4);
+				return new Dimension((scaled(cache.getWidth()) + 1) * 4,(scaled(cache.getHeight()) + 1) * 4);
 			}
 		}
 
-	public void redrawCache()
+	public Dimension getPreferredScrollableViewportSize()
 		{
-		cache = new BufferedImage(raster.getWidth(),raster.getHeight(),BufferedImage.TYPE_INT_ARGB);
-		Graphics g = cache.getGraphics();
-		curAct = 0;
-		for (ImageAction act : acts)
+		return getPreferredSize();
+		}
+
+	/**
+	 * Scrolls by whole image pixels, at least 10 screen pixels at a time.
+	 */
+	public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction)
+		{
+		return zoom * ((10 + zoom - 1) / zoom);
+		}
+
+	public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction)
+		{
+		int unit = getScrollableUnitIncrement(visibleRect,orientation,direction);
+		int extent = orientation == SwingConstants.HORIZONTAL ? visibleRect.width : visibleRect.height;
+		return Math.max(unit,extent - unit);
+		}
+
+	/**
+	 * The canvas is stretched to fill a viewport larger than the image,
+	 * so that tiled mode covers the whole view. Otherwise it scrolls.
+	 */
+	public boolean getScrollableTracksViewportWidth()
+		{
+		return getParent() instanceof JViewport
+				&& getParent().getWidth() > getPreferredSize().width;
+		}
+
+	public boolean getScrollableTracksViewportHeight()
+		{
+		return getParent() instanceof JViewport
+				&& getParent().getHeight() > getPreferredSize().height;
+		}
+
+	/**
+	 * Commits a new action to the history, discarding the redo history,
+	 * and paints it onto the cache.
+	 * @param act The action to commit.
+	 */
+	public void commit(ImageAction act)
+		{
+		redoActs.clear();
+		append(act);
+		}
+
+	/**
+	 * Appends an action to the history and paints only that action onto the existing cache,
+	 * so the cost does not depend on how many actions came before it.
+	 * If the cache is not up to date with the history, it is redrawn in full instead.
+	 * @param act The action to append.
+	 */
+	public void append(ImageAction act)
+		{
+		if (curAct != acts.size())
 			{
-			act.paint(g);
-			curAct++;
+			acts.add(act);
+			redrawCache();
+			return;
 			}
+		acts.add(act);
+		Graphics2D g = cache.createGraphics();
+		paintAction(g,act);
+		g.dispose();
+		markDirty(act);
+		if (act.copiesRaster() && rasterDrawn)
+			{
+			rasterDrawn = false;
+			mipDirty = null;
+			}
+		curAct++;
+		cacheVersion++;
+		if (checkpointDue(act)) addCheckpoint(act);
 		repaint();
 		}
 
-	public void redrawGrid()
+	/**
+	 * Moves the last action onto the redo history, and redraws the cache from the
+	 * nearest checkpoint before it.
+	 * @return Whether there was an action to undo.
+	 */
+	public boolean undo()
 		{
-		int cw, ch;
-		if (renderMode == RenderMode.TILED)
+		if (acts.isEmpty()) return false;
+		redoActs.addFirst(acts.removeLast());
+		redrawCache();
+		return true;
+		}
+
+	/**
+	 * Moves the first action from the redo history back onto the history, painting it onto the cache.
+	 * @return Whether there was an action to redo.
+	 */
+	public boolean redo()
+		{
+		if (redoActs.isEmpty()) return false;
+		append(redoActs.removeFirst());
+		return true;
+		}
+
+	/**
+	 * @return The action <code>redo</code> would redo, or null if there is none.
+	 */
+	public ImageAction getNextRedo()
+		{
+		return redoActs.peekFirst();
+		}
+
+	/**
+	 * Replays the history onto the cache from the nearest valid checkpoint.
+	 * This should only be needed when the history has been rewritten, such as
+	 * after an undo or when a HeavyImageAction is recalculated; new actions
+	 * should be added with <code>commit</code> or <code>append</code> instead.
+	 */
+	public void redrawCache()
+		{
+		if (cache.getWidth() != raster.getWidth() || cache.getHeight() != raster.getHeight())
 			{
-			cw = getWidth();
-			ch = getHeight();
+			cache = new BufferedImage(raster.getWidth(),raster.getHeight(),BufferedImage.TYPE_INT_ARGB);
+			checkpoints.clear();
+			dirtyBase = null;
+			dirty = new Rectangle();
 			}
+		Graphics2D g = cache.createGraphics();
+		Checkpoint cp = findCheckpoint();
+		// only the tiles which differ from what the cache already holds are restored
+		if (cp != null)
+			mipDirty = union(mipDirty,cp.image.drawTo(cache,dirtyBase,dirty));
 		else
 			{
-			cw = cache.getWidth() * zoom;
-			ch = cache.getHeight() * zoom;
+			Rectangle r = dirtyBase == null ? dirty : null;
+			if (r == null) r = new Rectangle(0,0,cache.getWidth(),cache.getHeight());
+			g.setComposite(AlphaComposite.Src);
+			g.setBackground(new Color(0,0,0,0));
+			g.clearRect(r.x,r.y,r.width,r.height);
+			g.setComposite(AlphaComposite.SrcOver);
+			mipDirty = union(mipDirty,r);
+			}
+		dirtyBase = cp == null ? null : cp.image;
+		dirty = new Rectangle();
+		cacheVersion++;
+
+		ImageAction[] list = acts.toArray(new ImageAction[acts.size()]);
+		curAct = cp == null ? 0 : cp.index;
+		while (curAct < list.length)
+			{
+			int run = getPointOpRun(list,curAct);
+			if (run > 1)
+				{
+				paintPointOps(g,list,run);
+				dirty = mipDirty = null;
+				}
+			else
+				{
+				paintAction(g,list[curAct]);
+				markDirty(list[curAct]);
+				}
+			curAct += Math.max(run,1);
+			cacheVersion++;
+			if (checkpointDue(list[curAct - 1])) addCheckpoint(list[curAct - 1]);
+			}
+		g.dispose();
+		// showing or hiding the raster changes the composite outside the restored tiles too
+		boolean drawn = shouldDrawRaster();
+		if (drawn != rasterDrawn) mipDirty = null;
+		rasterDrawn = drawn;
+		repaint();
+		}
+
+	/**
+	 * Finds how many actions from <code>start</code> can be fused into a single pass over the image.
+	 * These are consecutive PointOps, of which at least one copies the raster, since the fused result
+	 * replaces the cache with the whole image.
+	 * @return The length of the run, or 0 if there is none.
+	 */
+	private static int getPointOpRun(ImageAction[] list, int start)
+		{
+		boolean copies = false;
+		int end = start;
+		while (end < list.length && list[end] instanceof Algorithm.PointOp)
+			copies |= list[end++].copiesRaster();
+		return copies ? end - start : 0;
+		}
+
+	/**
+	 * Paints a run of PointOp actions, starting at curAct, in one pass over the composite image.
+	 */
+	private void paintPointOps(Graphics2D g, ImageAction[] list, int run)
+		{
+		ArrayList<Algorithm.PointOp> ops = new ArrayList<Algorithm.PointOp>(run);
+		for (int i = curAct; i < curAct + run; i++)
+			ops.add((Algorithm.PointOp) list[i]);
+		BufferedImage img = Algorithm.applyPointOps(getCompositeImage(),getScratchImage(),ops);
+		g.setComposite(AlphaComposite.Src);
+		g.drawImage(img,0,0,null);
+		g.setComposite(AlphaComposite.SrcOver);
+		}
+
+	/**
+	 * Drops any checkpoints that no longer match the history, and returns the
+	 * latest remaining one. Since history only ever changes at its tail, a checkpoint
+	 * is valid so long as the action at its index is still the one it was taken after.
+	 * @return The nearest valid checkpoint, or null if the history must be replayed in full.
+	 */
+	private Checkpoint findCheckpoint()
+		{
+		int valid = 0, i = 0;
+		ImageAction act = null;
+		Iterator<ImageAction> it = acts.iterator();
+		for (Checkpoint cp : checkpoints)
+			{
+			while (i < cp.index && it.hasNext())
+				{
+				act = it.next();
+				i++;
+				}
+			if (i != cp.index || act != cp.last) break;
+			valid++;
+			}
+		checkpoints.subList(valid,checkpoints.size()).clear();
+		return valid == 0 ? null : checkpoints.get(valid - 1);
+		}
+
+	/**
+	 * A checkpoint is taken every <code>checkpointInterval</code> actions, and straight after any slow
+	 * action, so that undoing later actions does not replay it on the event thread. Checkpoints after
+	 * slow actions are also the last to be dropped when over budget.
+	 * @param act The action just painted.
+	 * @return Whether a checkpoint should be taken now.
+	 */
+	private boolean checkpointDue(ImageAction act)
+		{
+		if (isSlow(act)) return true;
+		int last = checkpoints.isEmpty() ? 0 : checkpoints.get(checkpoints.size() - 1).index;
+		return curAct - last >= checkpointInterval;
+		}
+
+	/**
+	 * Adds the region an action painted to the dirty regions of the cache and of the mipmaps.
+	 * Actions which do not report their bounds make the whole cache dirty.
+	 */
+	private void markDirty(ImageAction act)
+		{
+		Rectangle r = null;
+		if (act instanceof ImageAction.BoundedImageAction)
+			r = wrapBounds(((ImageAction.BoundedImageAction) act).getBounds());
+		dirty = union(dirty,r);
+		mipDirty = union(mipDirty,r);
+		}
+
+	/**
+	 * Paints an action onto the image. In tiled mode, a bounded action is painted once at each
+	 * multiple of the image size where it overlaps the image, so that it wraps around the edges.
+	 * Unbounded actions are painted once, as they are.
+	 */
+	private void paintAction(Graphics2D g, ImageAction act)
+		{
+		if (renderMode != RenderMode.TILED || !(act instanceof ImageAction.BoundedImageAction))
+			{
+			act.paint(g);
+			return;
+			}
+		Rectangle b = ((ImageAction.BoundedImageAction) act).getBounds();
+		if (b.isEmpty()) return;
+		int w = cache.getWidth(), h = cache.getHeight();
+		for (int tx = floorDiv(b.x,w); tx <= floorDiv(b.x + b.width - 1,w); tx++)
+			for (int ty = floorDiv(b.y,h); ty <= floorDiv(b.y + b.height - 1,h); ty++)
+				{
+				Graphics2D g2 = (Graphics2D) g.create();
+				g2.translate(-tx * w,-ty * h);
+				act.paint(g2);
+				g2.dispose();
+				}
+		}
+
+	private static int floorDiv(int a, int b)
+		{
+		return a >= 0 ? a / b : -((b - 1 - a) / b);
+		}
+
+	/**
+	 * In tiled mode, wraps a rectangle of image coordinates around the edges of the image.
+	 * @return The smallest rectangle within the image covering every pixel of the wrapped
+	 * rectangle, or the rectangle clipped to the image in other modes.
+	 */
+	private Rectangle wrapBounds(Rectangle r)
+		{
+		int w = cache.getWidth(), h = cache.getHeight();
+		if (renderMode != RenderMode.TILED || r.isEmpty())
+			return r.intersection(new Rectangle(0,0,w,h));
+		int x = r.x - floorDiv(r.x,w) * w;
+		int y = r.y - floorDiv(r.y,h) * h;
+		Rectangle wrapped = new Rectangle(0,0,w,h);
+		if (x + r.width <= w)
+			{
+			wrapped.x = x;
+			wrapped.width = r.width;
+			}
+		if (y + r.height <= h)
+			{
+			wrapped.y = y;
+			wrapped.height = r.height;
+			}
+		return wrapped;
+		}
+
+	/**
+	 * @return The union of two dirty regions, where null stands for the whole image.
+	 */
+	private static Rectangle union(Rectangle a, Rectangle b)
+		{
+		if (a == null || b == null) return null;
+		if (b.isEmpty()) return a;
+		return a.isEmpty() ? b : a.union(b);
+		}
+
+	/**
+	 * Returns the composite image reduced by a power of two, for drawing while zoomed out.
+	 * Reductions are kept between calls, and only the region changed since is recomputed.
+	 * @param level The number of times to halve the image, at least 1.
+	 */
+	private BufferedImage getMipmap(int level)
+		{
+		BufferedImage src = getCompositeImage();
+		if (mipVersion != cacheVersion)
+			{
+			Rectangle r = mipDirty;
+			if (r == null) r = new Rectangle(0,0,src.getWidth(),src.getHeight());
+			for (int i = 0; i < mipmaps.size() && !r.isEmpty(); i++)
+				{
+				BufferedImage dst = mipmaps.get(i);
+				if (dst.getWidth() != (src.getWidth() + 1) / 2 || dst.getHeight() != (src.getHeight() + 1) / 2)
+					{
+					mipmaps.subList(i,mipmaps.size()).clear();
+					break;
+					}
+				int x2 = (r.x + r.width + 1) / 2, y2 = (r.y + r.height + 1) / 2;
+				r = new Rectangle(r.x / 2,r.y / 2,x2 - r.x / 2,y2 - r.y / 2);
+				Algorithm.halve(src,dst,r);
+				src = dst;
+				}
+			mipVersion = cacheVersion;
+			mipDirty = new Rectangle();
+			}
+		while (mipmaps.size() < level)
+			{
+			src = mipmaps.isEmpty() ? getCompositeImage() : mipmaps.get(mipmaps.size() - 1);
+			BufferedImage dst = new BufferedImage((src.getWidth() + 1) / 2,(src.getHeight() + 1) / 2,
+					BufferedImage.TYPE_INT_ARGB);
+			Algorithm.halve(src,dst,new Rectangle(0,0,dst.getWidth(),dst.getHeight()));
+			mipmaps.add(dst);
 			}
+		return mipmaps.get(level - 1);
+		}
 
-		grid = new BufferedImage(cw,ch,BufferedImage.TYPE_INT_ARGB);
-		Graphics g = grid.getGraphics();
-		paintGrid(g);
+	private void addCheckpoint(ImageAction last)
+		{
+		TiledImage image = new TiledImage(cache,dirtyBase,dirty);
+		checkpoints.add(new Checkpoint(curAct,last,image));
+		dirtyBase = image;
+		dirty = new Rectangle();
+		while (checkpoints.size() > 1 && getCheckpointSize() > checkpointBudget)
+			checkpoints.remove(getOldestCheap());
 		}
 
+	/**
+	 * Finds the checkpoint to drop first when over budget: the oldest one besides the latest which
+	 * follows an action that is cheap to replay, or failing that the oldest of all.
+	 */
+	private int getOldestCheap()
+		{
+		for (int i = 0; i < checkpoints.size() - 1; i++)
+			if (!isSlow(checkpoints.get(i).last)) return i;
+		return 0;
+		}
+
+	/**
+	 * @return Whether an action is an ImageOp other than a PointOp. These are slow enough that
+	 * they are computed in the background when first applied.
+	 */
+	private static boolean isSlow(ImageAction act)
+		{
+		return act instanceof ImageOp && !(act instanceof Algorithm.PointOp);
+		}
+
+	/**
+	 * @return The number of bytes held by all checkpoints, counting shared tiles once.
+	 */
+	private long getCheckpointSize()
+		{
+		Set<int[]> seen = Collections.newSetFromMap(new IdentityHashMap<int[],Boolean>());
+		long total = 0;
+		for (Checkpoint c : checkpoints)
+			total += c.image.getSize(seen);
+		return total;
+		}
+
+	/**
+	 * Draws the pixel grid lines falling within both the clip and the visible part of the canvas.
+	 * The lines are filled as a single shape so that, in XOR mode, crossings are inverted only once.
+	 */
 	public void paintGrid(Graphics g)
 		{
 		int cw, ch;
@@ -170,47 +672,92 @@ public class Canvas extends JLabel
 			ch = cache.getHeight() * zoom;
 			}
 
-		g.setColor(invertGrid ? Color.WHITE : Color.GRAY);
+		Rectangle r = new Rectangle(0,0,cw,ch).intersection(getVisibleRect());
+		Rectangle clip = g.getClipBounds();
+		if (clip != null) r = r.intersection(clip);
+		if (r.isEmpty()) return;
 
-		for (int y = 0; y <= ch; y += zoom)
-			g.drawLine(0,y,cw,y);
-		for (int x = 0; x <= cw; x += zoom)
-			g.drawLine(x,0,x,ch);
+		Path2D.Float lines = new Path2D.Float(Path2D.WIND_NON_ZERO);
+		for (int y = (r.y + zoom - 1) / zoom * zoom; y < r.y + r.height; y += zoom)
+			lines.append(new Rectangle(r.x,y,r.width,1),false);
+		for (int x = (r.x + zoom - 1) / zoom * zoom; x < r.x + r.width; x += zoom)
+			lines.append(new Rectangle(x,r.y,1,r.height),false);
+
+		g.setColor(invertGrid ? Color.WHITE : Color.GRAY);
+		((Graphics2D) g).fill(lines);
 		}
 
 	public void setZoom(int zoom)
 		{
 		this.zoom = zoom;
-		if (zoom >= 8) redrawGrid();
+		shrink = 0;
 		}
 
 	public void zoomIn()
 		{
-		if (zoom < 32)
-			{
+		if (shrink > 0)
+			shrink--;
+		else if (zoom < 32)
 			zoom *= 2;
-			redrawGrid();
-			updateUI();
-			}
+		else
+			return;
+		updateUI();
 		}
 
 	public void zoomOut()
 		{
 		if (zoom > 1)
-			{
 			zoom /= 2;
-			redrawGrid();
-			updateUI();
-			}
+		else if (shrink < MAX_SHRINK)
+			shrink++;
+		else
+			return;
+		updateUI();
 		}
 
+	/**
+	 * @return The size in screen pixels of one image pixel, or 1 when zoomed out past actual size.
+	 */
 	public int getZoom()
 		{
 		return zoom;
 		}
+
+	/**
+	 * Converts a point on this component to the coordinates of the image pixel under it.
+	 */
+	public Point toImagePoint(int x, int y)
+		{
+		return new Point((x / zoom) << shrink,(y / zoom) << shrink);
+		}
+
+	/**
+	 * @return The length in screen pixels of n image pixels, halved <code>level</code> times, at the current zoom.
+	 */
+	private int scaled(int n, int level)
+		{
+		return ((n + (1 << level) - 1) >> level) * zoom;
+		}
+
+	private int scaled(int n)
+		{
+		return scaled(n,shrink);
+		}
+
+	/**
+	 * @return Where the SCALED render mode draws the image at 1/2 (<code>k</code> = 1)
+	 * or 1/4 (<code>k</code> = 2) of the main view's size, to the right of it.
+	 */
+	private Rectangle getPreviewBounds(int k)
+		{
+		int x = scaled(cache.getWidth()) + 1;
+		for (int i = 1; i < k; i++)
+			x += scaled(cache.getWidth(),shrink + i) + 1;
+		return new Rectangle(x,0,scaled(cache.getWidth(),shrink + k),scaled(cache.getHeight(),shrink + k));
+		}
 	
 	public Color getColorAt(Point p) {
-		return new Color(getRenderImage().getRGB((int) p.getX(), (int) p.getY()), true);
+		return new Color(getCompositeImage().getRGB((int) p.getX(), (int) p.getY()), true);
 	}
 	
 	public void drawTransparentBackground(Graphics g)
@@ -225,15 +772,49 @@ public class Canvas extends JLabel
 			}
 		else
 			{
-			fullW = raster.getWidth() * zoom;
-			fullH = raster.getHeight() * zoom;
+			fullW = scaled(raster.getWidth());
+			fullH = scaled(raster.getHeight());
+			}
+		Graphics2D g2 = (Graphics2D) g;
+		Paint p = g2.getPaint();
+		g2.setPaint(getCheckerPaint(tW,tH));
+		fillClipped(g2,new Rectangle(0,0,fullW,fullH));
+		if (renderMode == RenderMode.SCALED)
+			{
+			fillClipped(g2,getPreviewBounds(1));
+			fillClipped(g2,getPreviewBounds(2));
 			}
+		g2.setPaint(p);
+		}
+
+	private static void fillClipped(Graphics2D g, Rectangle r)
+		{
+		Rectangle clip = g.getClipBounds();
+		if (clip != null) r = r.intersection(clip);
+		if (!r.isEmpty()) g.fillRect(r.x,r.y,r.width,r.height);
+		}
+
+	/**
+	 * Returns a paint of two by two checker squares, which is only redrawn
+	 * when the square size or either of the colors changes.
+	 */
+	private TexturePaint getCheckerPaint(int tW, int tH)
+		{
+		BufferedImage tile = checker == null ? null : checker.getImage();
+		if (tile != null && tile.getWidth() == tW * 2 && tile.getHeight() == tH * 2
+				&& transBack1.equals(checkerBack1) && transBack2.equals(checkerBack2)) return checker;
+		tile = new BufferedImage(tW * 2,tH * 2,BufferedImage.TYPE_INT_RGB);
+		Graphics g = tile.createGraphics();
 		g.setColor(transBack1);
-		g.fillRect(0, 0, fullW, fullH);
+		g.fillRect(0,0,tW * 2,tH * 2);
 		g.setColor(transBack2);
-		for (int x = 0; x < Math.ceil((double) fullW / tW); x += 1)
-			for (int y = (x + 1) % 2; y < Math.ceil((double) fullH / tH); y += 2)
-				g.fillRect(x * tW, y * tH, Math.min(tW, fullW - x * tW), Math.min(tH, fullH - y * tH));
+		g.fillRect(tW,0,tW,tH);
+		g.fillRect(0,tH,tW,tH);
+		g.dispose();
+		checkerBack1 = transBack1;
+		checkerBack2 = transBack2;
+		checker = new TexturePaint(tile,new Rectangle(0,0,tW * 2,tH * 2));
+		return checker;
 		}
 	
 	public boolean shouldDrawRaster()
@@ -256,10 +837,11 @@ public class Canvas extends JLabel
 	public void repaint(Rectangle r)
 		{
 		if (renderMode != RenderMode.TILED) {
-			r.x *= zoom;
-			r.y *= zoom;
-			r.width = (r.width + 1) * zoom;
-			r.height = (r.height + 1) * zoom;
+			int x1 = r.x * zoom >> shrink;
+			int y1 = r.y * zoom >> shrink;
+			int x2 = ((r.x + r.width + 1) * zoom >> shrink) + 1;
+			int y2 = ((r.y + r.height + 1) * zoom >> shrink) + 1;
+			r = new Rectangle(x1,y1,x2 - x1,y2 - y1);
 		}
 		else
 		  r = new Rectangle(0,0,getWidth(),getHeight());
@@ -270,56 +852,158 @@ public class Canvas extends JLabel
 	public void paint(Graphics g)
 		{
 		super.paint(g);
-		
-		if (!getSize().equals(prevSize))
-			{
-			redrawGrid();
-			prevSize = getSize();
-			}
-		int cw = cache.getWidth() * zoom;
-		int ch = cache.getHeight() * zoom;
+
+		int cw = scaled(cache.getWidth());
+		int ch = scaled(cache.getHeight());
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) clip = new Rectangle(0,0,getWidth(),getHeight());
 
 		drawTransparentBackground(g);
-		boolean drawRaster = shouldDrawRaster();
 		
-		if (renderMode == RenderMode.NORMAL)
-			{
-			if (drawRaster)
-				g.drawImage(raster,0,0,raster.getWidth() * zoom,raster.getHeight() * zoom,null);
-			g.drawImage(cache,0,0,cw,ch,null);
-			}
+		if (renderMode == RenderMode.NORMAL || renderMode == RenderMode.SCALED)
+			drawImage(g,0,0,clip);
 		else if (renderMode == RenderMode.TILED)
-			{
-			for (int i = 0; i < getWidth(); i += cw)
-				for (int j = 0; j < getHeight(); j += ch)
-					{
-					if (drawRaster)
-						g.drawImage(raster,i,j,raster.getWidth() * zoom,raster.getHeight() * zoom,null);
-					g.drawImage(cache,i,j,cw,ch,null);
-					}
-			}
+			fillTiled(g,shrink > 0 ? getMipmap(shrink) : getCompositeImage(),cw,ch,clip);
+
+		if (renderMode == RenderMode.SCALED)
+			for (int k = 1; k <= 2; k++)
+				{
+				Rectangle r = getPreviewBounds(k);
+				if (clip.intersects(r)) drawScaled(g,getMipmap(shrink + k),r.x,r.y,clip,zoom,0);
+				}
 
 		if (active != null)
 			{
-			BufferedImage activeImg = new BufferedImage(cache.getWidth(),cache.getHeight(),
-					BufferedImage.TYPE_INT_ARGB);
-			active.paint(activeImg.getGraphics());
-			if (renderMode == RenderMode.NORMAL)
-			  g.drawImage(activeImg,0,0,cw,ch,null);
-			else if (renderMode == RenderMode.TILED) {
-			  for (int i = 0; i < 4 || i < getWidth(); i += cw)
-			  	for (int j = 0; j < 4 || j < getHeight(); j += ch)
-			  		g.drawImage(activeImg,i,j,cw,ch,null);
-			}
+			//in tiled mode, the part of the image shown within the clip by any of the tiles
+			Rectangle r = paintOverlay(wrapBounds(toImageSpace(clip)));
+			if (r != null)
+				{
+				BufferedImage activeImg = overlay.getSubimage(0,0,r.width,r.height);
+				int x = scaled(r.x), y = scaled(r.y);
+				if (renderMode == RenderMode.NORMAL || renderMode == RenderMode.SCALED)
+					drawScaled(g,activeImg,x,y,clip);
+				else if (renderMode == RenderMode.TILED)
+					for (int ty = floorDiv(clip.y,ch) * ch; ty < clip.y + clip.height; ty += ch)
+						for (int tx = floorDiv(clip.x,cw) * cw; tx < clip.x + clip.width; tx += cw)
+							drawScaled(g,activeImg,tx + x,ty + y,clip);
+				}
 			}
 
 		if (isGridDrawn && zoom >= 8)
 			{
 			if (invertGrid) g.setXORMode(Color.BLACK);
-			g.drawImage(grid,0,0,null);
+			paintGrid(g);
 			if (invertGrid) g.setPaintMode();
 			}
 
 		g.clipRect(0,0,cw,ch);
 		}
+
+	/**
+	 * Draws the image as it stands before the active action, with its top left corner at (x,y).
+	 * When zoomed out, this is the matching mipmap rather than a reduction of the full image.
+	 */
+	private void drawImage(Graphics g, int x, int y, Rectangle clip)
+		{
+		if (shrink > 0)
+			{
+			drawScaled(g,getMipmap(shrink),x,y,clip,zoom,0);
+			return;
+			}
+		if (shouldDrawRaster()) drawScaled(g,raster,x,y,clip);
+		drawScaled(g,cache,x,y,clip);
+		}
+
+	/**
+	 * Fills the clip with copies of an image scaled to cw by ch, repeating from the top left corner.
+	 */
+	private static void fillTiled(Graphics g, BufferedImage img, int cw, int ch, Rectangle clip)
+		{
+		Graphics2D g2 = (Graphics2D) g;
+		Paint p = g2.getPaint();
+		//TexturePaint samples at pixel corners; offsetting by half a pixel samples
+		//at their centers instead, picking the same texels as a scaled drawImage
+		g2.setPaint(new TexturePaint(img,new Rectangle2D.Double(-0.5,-0.5,cw,ch)));
+		g2.fill(clip);
+		g2.setPaint(p);
+		}
+
+	/**
+	 * Paints the active action into the overlay, within the given region of the image.
+	 * The overlay only holds the part of the image being drawn, with its top left corner
+	 * at the overlay's origin, so it never costs a copy of the whole image. It is kept
+	 * between paints, and only reallocated when a larger region is needed.
+	 * @return The region of the image painted, aligned to the pixels of the current mipmap,
+	 * or null if the action does not reach the given region.
+	 */
+	private Rectangle paintOverlay(Rectangle region)
+		{
+		Rectangle r = region;
+		if (active instanceof ImageAction.BoundedImageAction)
+			r = r.intersection(wrapBounds(((ImageAction.BoundedImageAction) active).getBounds()));
+		if (r.isEmpty()) return null;
+		// when zoomed out, the overlay must start on a whole pixel of the mipmap to line up with it
+		int m = (1 << shrink) - 1;
+		int x1 = r.x & ~m, y1 = r.y & ~m;
+		int x2 = Math.min(cache.getWidth(),(r.x + r.width + m) & ~m);
+		int y2 = Math.min(cache.getHeight(),(r.y + r.height + m) & ~m);
+		Rectangle clip = r;
+		r = new Rectangle(x1,y1,x2 - x1,y2 - y1);
+
+		if (overlay == null || overlay.getWidth() < r.width || overlay.getHeight() < r.height)
+			{
+			int w = overlay == null ? r.width : Math.max(r.width,overlay.getWidth());
+			int h = overlay == null ? r.height : Math.max(r.height,overlay.getHeight());
+			overlay = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+			}
+		Graphics2D g = overlay.createGraphics();
+		g.setComposite(AlphaComposite.Clear);
+		g.fillRect(0,0,r.width,r.height);
+		g.setComposite(AlphaComposite.SrcOver);
+		g.translate(-r.x,-r.y);
+		g.clip(clip);
+		paintAction(g,active);
+		g.dispose();
+		return r;
+		}
+
+	/**
+	 * Converts a rectangle of this component to the smallest rectangle of image pixels covering it.
+	 */
+	private Rectangle toImageSpace(Rectangle r)
+		{
+		int x1 = (r.x / zoom) << shrink;
+		int y1 = (r.y / zoom) << shrink;
+		int x2 = ((r.x + r.width + zoom - 1) / zoom) << shrink;
+		int y2 = ((r.y + r.height + zoom - 1) / zoom) << shrink;
+		return new Rectangle(x1,y1,x2 - x1,y2 - y1);
+		}
+
+	/**
+	 * Draws a full size image scaled by the current zoom, with its top left corner at (x,y),
+	 * but only the source pixels which fall within the clip.
+	 */
+	private void drawScaled(Graphics g, BufferedImage img, int x, int y, Rectangle clip)
+		{
+		drawScaled(g,img,x,y,clip,zoom,shrink);
+		}
+
+	/**
+	 * Draws an image scaled up by <code>zoom</code> and halved <code>shrink</code> times,
+	 * with its top left corner at (x,y), but only the source pixels which fall within the clip.
+	 * At most one of the two may scale; the other must be 1 or 0 respectively.
+	 */
+	private static void drawScaled(Graphics g, BufferedImage img, int x, int y, Rectangle clip,
+			int zoom, int shrink)
+		{
+		int sx1 = Math.max(0,((clip.x - x) / zoom) << shrink);
+		int sy1 = Math.max(0,((clip.y - y) / zoom) << shrink);
+		int sx2 = Math.min(img.getWidth(),((clip.x + clip.width - x + zoom - 1) / zoom) << shrink);
+		int sy2 = Math.min(img.getHeight(),((clip.y + clip.height - y + zoom - 1) / zoom) << shrink);
+		if (sx1 >= sx2 || sy1 >= sy2) return;
+		int round = (1 << shrink) - 1;
+		g.drawImage(img,x + (sx1 * zoom >> shrink),y + (sy1 * zoom >> shrink),
+				x + ((sx2 * zoom + round) >> shrink),y + ((sy2 * zoom + round) >> shrink),
+				sx1,sy1,sx2,sy2,null);
+		}
 	}
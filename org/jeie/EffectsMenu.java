@@ -27,21 +27,11 @@
 
 package org.jeie;
 
-import java.awt.AlphaComposite;
 import java.awt.Color;
-import java.awt.Composite;
-import java.awt.Dimension;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.FilteredImageSource;
-import java.awt.image.Kernel;
-import java.awt.image.RescaleOp;
+import java.util.Collections;
 
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
@@ -54,175 +44,149 @@ public class EffectsMenu extends JMenu implements ActionListener
 	private static final long serialVersionUID = 1L;
 	public Jeie jeie;
 
-	public class Blur implements ImageAction
+	public static class Blur extends ImageOp.Action
 		{
 		public int amount;
 
-		public Blur(int amt)
+		public Blur(Canvas canvas, int amt)
 			{
+			super(canvas);
 			amount = amt;
 			}
 
-		public void paint(Graphics g)
+		public BufferedImage apply(BufferedImage src, BufferedImage dst)
 			{
-			Canvas c = jeie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-
-			// create the blur kernel
-			int numCoords = amount * amount;
-			float blurFactor = 1.0f / numCoords;
-
-			float[] blurKernel = new float[numCoords];
-			for (int j = 0; j < numCoords; j++)
-				blurKernel[j] = blurFactor;
+			if (dst == src) dst = null;
+			return Algorithm.boxBlur(src,dst,amount);
+			}
+		}
 
-			Kernel k = new Kernel(amount,amount,blurKernel);
-			ConvolveOp blur = new ConvolveOp(k,ConvolveOp.EDGE_NO_OP,null);
-			
-			BufferedImage img = c.getRenderImage();
-			
-			//Clear the image.
-			g2.setBackground(new Color(0, 0, 0, 0));
-			g2.clearRect(0,0,img.getWidth(),img.getHeight());
-			
-			g2.drawImage(img,blur,0,0);
+	/**
+	 * An action which applies itself as a point operation to every pixel.
+	 */
+	public static abstract class PointOpAction extends ImageOp.Action implements Algorithm.PointOp
+		{
+		public PointOpAction(Canvas canvas)
+			{
+			super(canvas);
 			}
-		
-		public boolean copiesRaster()
+
+		public BufferedImage apply(BufferedImage src, BufferedImage dst)
 			{
-			return true;
+			return Algorithm.applyPointOps(src,dst,Collections.singletonList(this));
 			}
 		}
 
-	public class Value implements ImageAction
+	public static class Value extends PointOpAction implements Algorithm.ChannelOp
 		{
 		public float amount;
 
-		public Value(float amt)
+		public Value(Canvas canvas, float amt)
 			{
+			super(canvas);
 			amount = amt;
 			}
 
-		public void paint(Graphics g)
+		public int[][] getTables()
 			{
-			Canvas c = jeie.canvas;
-			Graphics2D g2 = (Graphics2D) g;
-			float[] scale = { amount,amount,amount,1.0f }; // keep alpha
-			float[] offsets = { 0.0f,0.0f,0.0f,0.0f };
-			RescaleOp value = new RescaleOp(scale,offsets,null);
-			
-			BufferedImage img = c.getRenderImage();
-			
-			//Clear the image.
-			g2.setBackground(new Color(0, 0, 0, 0));
-			g2.clearRect(0,0,img.getWidth(),img.getHeight());
-			
-			g2.drawImage(img,value,0,0);
+			int[] table = new int[256];
+			for (int v = 0; v < 256; v++)
+				table[v] = Math.min(255,(int) (v * amount));
+			return Algorithm.channelTables(table);
 			}
-		
-		public boolean copiesRaster()
+
+		public int filter(int argb)
 			{
-			return true;
+			int r = Math.min(255,(int) (((argb >> 16) & 0xFF) * amount));
+			int g = Math.min(255,(int) (((argb >> 8) & 0xFF) * amount));
+			int b = Math.min(255,(int) ((argb & 0xFF) * amount));
+			return (argb & 0xFF000000) | (r << 16) | (g << 8) | b; // keep alpha
 			}
 		}
 
-	public class Invert implements ImageAction
+	public static class Invert extends PointOpAction implements Algorithm.ChannelOp
 		{
-		public void paint(Graphics g)
+		public Invert(Canvas canvas)
+			{
+			super(canvas);
+			}
+
+		public int[][] getTables()
 			{
-			Canvas c = jeie.canvas;
-			Graphics2D g2d = (Graphics2D) g;
-			float[] negFactors = { -1.0f,-1.0f,-1.0f,1.0f }; // keep alpha
-			float[] offsets = { 255f,255f,255f,0.0f };
-			RescaleOp invert = new RescaleOp(negFactors,offsets,null);
-			
-			BufferedImage img = c.getRenderImage();
-			
-			//Clear the image.
-			g2d.setBackground(new Color(0, 0, 0, 0));
-			g2d.clearRect(0,0,img.getWidth(),img.getHeight());
-			
-			g2d.drawImage(img,invert,0,0);
+			int[] table = new int[256];
+			for (int v = 0; v < 256; v++)
+				table[v] = 255 - v;
+			return Algorithm.channelTables(table);
 			}
-		
-		public boolean copiesRaster()
+
+		public int filter(int argb)
 			{
-			return true;
+			return argb ^ 0x00FFFFFF; // keep alpha
 			}
 		}
 
-	public class Fade implements ImageAction
+	public static class Fade extends PointOpAction
 		{
-		public Color fadeTo;
-		public float amount;
+		public final Color fadeTo;
+		public final float amount;
+		/** Our opacity, and our color premultiplied by its weight of sa * 255. */
+		private final int sa, wr, wg, wb;
 
-		public Fade(Color to, float amt)
+		public Fade(Canvas canvas, Color to, float amt)
 			{
+			super(canvas);
 			fadeTo = to;
 			amount = amt;
-			}
-
-		public void paint(Graphics g)
-			{
-			Canvas c = jeie.canvas;
-			Graphics2D g2d = (Graphics2D) g;
-
-			Composite oldComp = g2d.getComposite();
-			Color oldCol = g2d.getColor();
-
-			g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,amount));
-			g2d.setColor(fadeTo);
-			Dimension d = c.getImageSize();
-			g2d.fillRect(0,0,d.width,d.height);
-			g2d.setColor(oldCol);
-			g2d.setComposite(oldComp);
-			}
-		
-		public boolean copiesRaster()
-			{
-			return false;
+			sa = Math.max(0,Math.min(255,Math.round(amount * fadeTo.getAlpha())));
+			wr = fadeTo.getRed() * sa * 255;
+			wg = fadeTo.getGreen() * sa * 255;
+			wb = fadeTo.getBlue() * sa * 255;
+			}
+
+		/**
+		 * The pixel with our color drawn over it at <code>amount</code> opacity, in integer
+		 * arithmetic, so that the result is the same however the action is applied.
+		 */
+		public int filter(int argb)
+			{
+			// the weights of our color and of the pixel, out of 255 * 255
+			int wd = (argb >>> 24) * (255 - sa);
+			int oa = sa * 255 + wd;
+			if (oa == 0) return 0;
+			int half = oa / 2;
+			int r = (wr + ((argb >> 16) & 0xFF) * wd + half) / oa;
+			int g = (wg + ((argb >> 8) & 0xFF) * wd + half) / oa;
+			int b = (wb + (argb & 0xFF) * wd + half) / oa;
+			return ((oa + 127) / 255 << 24) | (r << 16) | (g << 8) | b;
 			}
 		}
 
-	public class Saturation implements ImageAction
+	public static class Saturation extends PointOpAction
 		{
-		public int amount;
+		public final int amount;
+		private final SaturationFilter filter;
 
-		public Saturation(int amt)
+		public Saturation(Canvas canvas, int amt)
 			{
+			super(canvas);
 			amount = amt;
+			filter = new SaturationFilter(amount / 100f);
 			}
 
-		public void paint(Graphics g)
+		public BufferedImage apply(BufferedImage src, BufferedImage dst)
 			{
-			Canvas c = jeie.canvas;
-
-			SaturationFilter filter = new SaturationFilter(amount / 100f);
-			FilteredImageSource filteredSrc = new FilteredImageSource(c.getRenderImage().getSource(), filter);
-			
-			Image image = Toolkit.getDefaultToolkit().createImage(filteredSrc);
-			
-			Graphics2D g2 = (Graphics2D) g;
-			
-			//Clear the image.
-			g2.setBackground(new Color(0, 0, 0, 0));
-			g2.clearRect(0,0,image.getWidth(null),image.getHeight(null));
-			
-			g2.drawImage(image, 0, 0, null);
+			return filter.filter(src,dst);
 			}
-		
-		public boolean copiesRaster()
+
+		public int filter(int argb)
 			{
-			return true;
+			return filter.filter(argb);
 			}
 		}
 
 	public void applyAction(ImageAction act)
 		{
-		Canvas c = jeie.canvas;
-		c.acts.add(act);
-		c.redoActs.clear();
-		c.redrawCache();
+		jeie.applyAction(act);
 		}
 
 	public EffectsMenu(Jeie jeie)
@@ -260,30 +224,30 @@ public class EffectsMenu extends JMenu implements ActionListener
 		if (act.equals("BLUR"))
 			{
 			Integer integer = IntegerDialog.getInteger(Resources.getString("EffectsMenu.BLUR_AMOUNT"),1,9,3,3);
-			if (integer != null) applyAction(new Blur(integer));
+			if (integer != null) applyAction(new Blur(jeie.canvas,integer));
 			return;
 			}
 		if (act.equals("SATURATION"))
 			{
 			Integer integer = IntegerDialog.getInteger(Resources.getString("EffectsMenu.SATURATION_AMOUNT"),0,200,100,50);
-			if (integer != null) applyAction(new Saturation(integer));
+			if (integer != null) applyAction(new Saturation(jeie.canvas,integer));
 			return;
 			}
 		if (act.equalsIgnoreCase("VALUE"))
 			{
 			Integer integer = IntegerDialog.getInteger(Resources.getString("EffectsMenu.VALUE_AMOUNT"),-10,10,0,5);
-			if (integer != null) applyAction(new Value((integer + 10) / 10.0f));
+			if (integer != null) applyAction(new Value(jeie.canvas,(integer + 10) / 10.0f));
 			return;
 			}
 		if (act.equals("INVERT"))
 			{
-			applyAction(new Invert());
+			applyAction(new Invert(jeie.canvas));
 			return;
 			}
 		if (act.equals("FADE"))
 			{
 			Integer integer = IntegerDialog.getInteger(Resources.getString("EffectsMenu.FADE_AMOUNT"),0,256,128,64);
-			if (integer != null) applyAction(new Fade(Color.BLACK,((float) integer) / 256.0f));
+			if (integer != null) applyAction(new Fade(jeie.canvas,Color.BLACK,((float) integer) / 256.0f));
 			return;
 			}
 		}
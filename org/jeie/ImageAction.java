@@ -27,9 +27,7 @@ package org.jeie;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.LinearGradientPaint;
@@ -37,13 +35,14 @@ import java.awt.Paint;
 import java.awt.Point;
 import java.awt.RadialGradientPaint;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.Stroke;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
 import java.awt.image.BufferedImage;
-import java.util.LinkedList;
 
 import org.jeie.Algorithm.EdgeDetect;
 import org.jeie.Algorithm.FloodFill;
-import org.jeie.Canvas.RenderMode;
 import org.jeie.OptionComponent.FillOptions.FillType;
 
 public interface ImageAction
@@ -67,6 +66,20 @@ public interface ImageAction
 		public void recalculate(BufferedImage source);
 		}
 
+	/**
+	 * A Bounded Image Action is an Image Action which knows the region of
+	 * the image it paints to, so that only that region needs to be
+	 * cleared and redrawn while the action is still being edited.
+	 */
+	public static interface BoundedImageAction extends ImageAction
+		{
+		/**
+		 * @return The smallest known rectangle, in image coordinates,
+		 * containing every pixel this action paints.
+		 */
+		public Rectangle getBounds();
+		}
+
 	public static class Resize implements ImageAction
 		{
 		public int w, h;
@@ -83,7 +96,7 @@ public interface ImageAction
 			}
 		}
 	
-	public static class TextAction implements ImageAction
+	public static class TextAction implements BoundedImageAction
 	{
 	public Color color;
 	public Font font;
@@ -91,6 +104,8 @@ public interface ImageAction
 	public Canvas canvas;
 	public String text;
 	public OptionComponent.TextOptions.Alignment halign, valign;
+	/** Text is laid out without antialiasing or fractional metrics, as it is drawn. */
+	private static final FontRenderContext FRC = new FontRenderContext(null,false,false);
 	
 	public TextAction(Canvas canvas, Point p, Color col, Font f, String t, OptionComponent.TextOptions.Alignment h, OptionComponent.TextOptions.Alignment v)
 		{
@@ -103,14 +118,24 @@ public interface ImageAction
 		valign = v;
 		}
 	
-	public void paint(Graphics g)
+	/**
+	 * @return The glyphs of the text, laid out in the context it is always drawn in.
+	 */
+	protected GlyphVector getGlyphs()
+		{
+		return font.createGlyphVector(FRC,text);
+		}
+
+	/**
+	 * @return Where the baseline of the text starts, after alignment.
+	 */
+	protected Point getOrigin(GlyphVector glyphs)
 		{
 		int x = (int) p.getX();
 		int y = (int) p.getY();
-		FontMetrics metrics = g.getFontMetrics(font);
 		
-		int w = metrics.stringWidth(text);
-		int h = metrics.getHeight();
+		int w = (int) Math.round(glyphs.getLogicalBounds().getWidth());
+		int h = (int) Math.ceil(font.getLineMetrics(text,FRC).getHeight());
 		
 		if (halign == OptionComponent.TextOptions.Alignment.CENTER)
 			x -= w / 2;
@@ -121,19 +146,31 @@ public interface ImageAction
 			y += h / 2;
 		else if (valign == OptionComponent.TextOptions.Alignment.TOP)
 			y += h;
+		return new Point(x,y);
+		}
+
+	/**
+	 * Draws the glyphs with text antialiasing off, whatever the target graphics would
+	 * otherwise use, so that they cover exactly the pixels <code>getBounds</code> reports.
+	 */
+	public void paint(Graphics g)
+		{
+		Graphics2D g2 = (Graphics2D) g;
+		GlyphVector glyphs = getGlyphs();
+		Point o = getOrigin(glyphs);
 		
-		g.setFont(font);
-		g.setColor(color);
-		
-		if (canvas.renderMode != RenderMode.TILED)
-			g.drawString(text,x,y);
-		else
-			{
-			Dimension img = canvas.getImageSize();
-			for (int dx = 0; x + w - dx >= 0; dx += img.width)
-				for (int dy = 0; y + h - dy >= 0; dy += img.height)
-					g.drawString(text,x - dx,y - dy);
-			}
+		Object aa = g2.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING);
+		g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+		g2.setColor(color);
+		g2.drawGlyphVector(glyphs,o.x,o.y);
+		if (aa != null) g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,aa);
+		}
+
+	public Rectangle getBounds()
+		{
+		GlyphVector glyphs = getGlyphs();
+		Point o = getOrigin(glyphs);
+		return glyphs.getPixelBounds(FRC,o.x,o.y);
 		}
 	
 	public boolean copiesRaster()
@@ -142,7 +179,7 @@ public interface ImageAction
 		}
 	}
 
-	public static class RectangleAction implements ImageAction
+	public static class RectangleAction implements BoundedImageAction
 		{
 		public Color out, in;
 		public Point p1, p2;
@@ -164,38 +201,31 @@ public interface ImageAction
 			if (out != null)
 				{
 				g.setColor(out);
-				if (canvas.renderMode != RenderMode.TILED)
-					g.drawRect(r.x,r.y,r.width,r.height);
-				else
-					{
-					Dimension img = canvas.getImageSize();
-					for (int dx = 0; r.x + r.width - dx >= 0; dx += img.width)
-						for (int dy = 0; r.y + r.height - dy >= 0; dy += img.height)
-							g.drawRect(r.x - dx,r.y - dy,r.width,r.height);
-					}
+				g.drawRect(r.x,r.y,r.width,r.height);
 				}
 			if (in != null)
 				{
 				g.setColor(in);
-				if (canvas.renderMode != RenderMode.TILED)
-					g.fillRect(r.x + 1,r.y + 1,r.width - 1,r.height - 1);
-				else
-					{
-					Dimension img = canvas.getImageSize();
-					for (int dx = 0; r.x + r.width - dx >= 0; dx += img.width)
-						for (int dy = 0; r.y + r.height - dy >= 0; dy += img.height)
-							g.fillRect(r.x - dx + 1,r.y - dy + 1,r.width - 1,r.height - 1);
-					}
+				g.fillRect(r.x + 1,r.y + 1,r.width - 1,r.height - 1);
 				}
 			}
 		
+		public Rectangle getBounds()
+			{
+			Rectangle r = new Rectangle(p1);
+			r.add(p2);
+			r.width++;
+			r.height++;
+			return r;
+			}
+
 		public boolean copiesRaster()
 			{
 			return false;
 			}
 		}
 	
-	public static class RoundRectangleAction implements ImageAction
+	public static class RoundRectangleAction implements BoundedImageAction
 	{
 	public Color out, in;
 	public Point p1, p2;
@@ -217,38 +247,31 @@ public interface ImageAction
 		if (in != null)
 			{
 			g.setColor(in);
-			if (canvas.renderMode != RenderMode.TILED)
-				g.fillRoundRect(r.x,r.y,r.width,r.height,16,16);
-			else
-				{
-				Dimension img = canvas.getImageSize();
-				for (int dx = 0; r.x + r.width - dx >= 0; dx += img.width)
-					for (int dy = 0; r.y + r.height - dy >= 0; dy += img.height)
-						g.fillRoundRect(r.x - dx,r.y - dy,r.width,r.height,16,16);
-				}
+			g.fillRoundRect(r.x,r.y,r.width,r.height,16,16);
 			}
 		if (out != null)
 			{
 			g.setColor(out);
-			if (canvas.renderMode != RenderMode.TILED)
-				g.drawRoundRect(r.x,r.y,r.width,r.height,16,16);
-			else
-				{
-				Dimension img = canvas.getImageSize();
-				for (int dx = 0; r.x + r.width - dx >= 0; dx += img.width)
-					for (int dy = 0; r.y + r.height - dy >= 0; dy += img.height)
-						g.drawRoundRect(r.x - dx,r.y - dy,r.width,r.height,16,16);
-				}
+			g.drawRoundRect(r.x,r.y,r.width,r.height,16,16);
 			}
 		}
 	
+	public Rectangle getBounds()
+		{
+		Rectangle r = new Rectangle(p1);
+		r.add(p2);
+		r.width++;
+		r.height++;
+		return r;
+		}
+
 	public boolean copiesRaster()
 		{
 		return false;
 		}
 	}
 
-	public static class OvalAction implements ImageAction
+	public static class OvalAction implements BoundedImageAction
 		{
 		public Color out, in;
 		public Point p1, p2;
@@ -270,43 +293,37 @@ public interface ImageAction
 			if (in != null)
 				{
 				g.setColor(in);
-				if (canvas.renderMode != RenderMode.TILED)
-					g.fillOval(r.x,r.y,r.width,r.height);
-				else
-					{
-					Dimension img = canvas.getImageSize();
-					for (int dx = 0; r.x + r.width - dx >= 0; dx += img.width)
-						for (int dy = 0; r.y + r.height - dy >= 0; dy += img.height)
-							g.fillOval(r.x - dx,r.y - dy,r.width,r.height);
-					}
+				g.fillOval(r.x,r.y,r.width,r.height);
 				}
 			if (out != null)
 				{
 				g.setColor(out);
-				if (canvas.renderMode != RenderMode.TILED)
-					g.drawOval(r.x,r.y,r.width,r.height);
-				else
-					{
-					Dimension img = canvas.getImageSize();
-					for (int dx = 0; r.x + r.width - dx >= 0; dx += img.width)
-						for (int dy = 0; r.y + r.height - dy >= 0; dy += img.height)
-							g.drawOval(r.x - dx,r.y - dy,r.width,r.height);
-					}
+				g.drawOval(r.x,r.y,r.width,r.height);
 				}
 			}
 		
+		public Rectangle getBounds()
+			{
+			Rectangle r = new Rectangle(p1);
+			r.add(p2);
+			r.width++;
+			r.height++;
+			return r;
+			}
+
 		public boolean copiesRaster()
 			{
 			return false;
 			}
 		}
 
-	public static class LineAction implements ImageAction
+	public static class LineAction implements BoundedImageAction
 		{
 		public Color c;
 		public Point p1, p2;
 		public int diameter;
 		Canvas canvas;
+		final BasicStroke stroke;
 
 		public LineAction(Canvas canvas, Point p, Color c, int diam)
 			{
@@ -315,6 +332,7 @@ public interface ImageAction
 			p1 = p;
 			p2 = p;
 			diameter = diam;
+			stroke = Brushes.getSquare(diam);
 			}
 
 		public void paint(Graphics g)
@@ -322,19 +340,19 @@ public interface ImageAction
 			g.setColor(c);
 			Graphics2D g2d = (Graphics2D) g;
 			Stroke s = g2d.getStroke();
-			g2d.setStroke(new BasicStroke(diameter));//diameter>2?diameter:diameter/2));
-			if (canvas.renderMode != RenderMode.TILED)
-				g2d.drawLine(p1.x,p1.y,p2.x,p2.y);
-			else
-				{
-				Dimension img = canvas.getImageSize();
-				for (int dx = 0; p2.x - dx >= 0 || p1.x - dx >= 0; dx += img.width)
-					for (int dy = 0; p2.y - dy >= 0 || p1.y - dy >= 0; dy += img.height)
-						g2d.drawLine(p1.x - dx,p1.y - dy,p2.x - dx,p2.y - dy);
-				}
+			g2d.setStroke(stroke);
+			g2d.drawLine(p1.x,p1.y,p2.x,p2.y);
 			g2d.setStroke(s);
 			}
 		
+		public Rectangle getBounds()
+			{
+			Rectangle r = new Rectangle(p1);
+			r.add(p2);
+			r.grow(diameter + 1,diameter + 1);
+			return r;
+			}
+
 		public boolean copiesRaster()
 			{
 			return false;
@@ -404,228 +422,91 @@ public interface ImageAction
 			}
 		}
 
-	public static class PointAction implements ImageAction
+	public static class PointAction implements BoundedImageAction
 		{
-		static final int MAX_FREE_POINTS = 64;
-
 		public Canvas canvas;
 		public Color c;
-		LinkedList<Point> pts = new LinkedList<Point>();
-		BufferedImage cache;
-		int cacheX, cacheY;
-		int minX = Integer.MAX_VALUE, minY = minX, maxX = 0, maxY = 0;
+		StrokeBuffer pts = new StrokeBuffer();
+		/** The stroke so far, rasterized one segment at a time as points are added. */
+		TileSurface surface;
 
 		public PointAction(Canvas canvas, Color c)
 			{
 			this.canvas = canvas;
 			this.c = c;
-			}
-
-		protected void toCache()
-			{
-			int newMinX = minX;
-			int newMinY = minY;
-			int w = maxX - minX + 1;
-			int h = maxY - minY + 1;
-			if (cache != null)
-				{
-				newMinX = Math.min(minX,cacheX);
-				newMinY = Math.min(minY,cacheY);
-				int newMaxX = Math.max(maxX,cache.getWidth() + cacheX);
-				int newMaxY = Math.max(maxY,cache.getHeight() + cacheY);
-
-				w = newMaxX - newMinX + 1;
-				h = newMaxY - newMinY + 1;
-				}
-
-			BufferedImage newCache = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
-			Graphics g = newCache.createGraphics();
-			paint(g,-newMinX,-newMinY);
-
-			//reset our vars
-			cache = newCache;
-			cacheX = newMinX;
-			cacheY = newMinY;
-			Point p = pts.getLast();
-			pts.clear();
-			pts.add(p);
-			minX = p.x;
-			minY = p.y;
-			maxX = p.x;
-			maxY = p.y;
+			surface = new TileSurface(c,Brushes.getSquare(1));
 			}
 
 		public void add(Point p)
 			{
-			if (pts.add(p))
-				{
-				if (p.x < minX) minX = p.x;
-				else if (p.x > canvas.imageWidth()) minX = Math.min(minX,0);
-				if (p.y < minY) minY = p.y;
-				else if (p.y > canvas.imageHeight()) minY = Math.min(minY,0);
-				if (p.x > maxX) maxX = p.x;
-				if (p.y > maxY) maxY = p.y;
-				if (pts.size() > MAX_FREE_POINTS) toCache();
-				}
+			if (pts.isEmpty())
+				surface.drawLine(p.x,p.y,p.x,p.y);
+			else
+				surface.drawLine(pts.lastX(),pts.lastY(),p.x,p.y);
+			pts.add(p);
 			}
 
 		public void paint(Graphics g)
 			{
-			paint(g,0,0);
+			surface.paint(g);
 			}
-
-		public void paint(Graphics g, int shiftX, int shiftY)
+		
+		public Rectangle getBounds()
 			{
-			if (cache != null) g.drawImage(cache,cacheX + shiftX,cacheY + shiftY,null);
-			g.setColor(c);
-			Point prevPoint = pts.getFirst();
-			if (canvas.renderMode != RenderMode.TILED)
-				for (Point p : pts)
-					{
-					g.drawLine(prevPoint.x + shiftX,prevPoint.y + shiftY,p.x + shiftX,p.y + shiftY);
-					prevPoint = p;
-					}
-			else
-				{
-				Dimension img = canvas.getImageSize();
-				for (int dx = 0; dx <= maxX + shiftX; dx += img.width)
-					for (int dy = 0; dy <= maxY + shiftY; dy += img.height)
-						{
-						for (Point p : pts)
-							{
-							g.drawLine(prevPoint.x + shiftX - dx,prevPoint.y + shiftY - dy,p.x + shiftX - dx,p.y
-									+ shiftY - dy);
-							prevPoint = p;
-							}
-						prevPoint = pts.getFirst();
-						}
-				}
+			return pts.getBounds();
 			}
-		
+
 		public boolean copiesRaster()
 			{
 			return false;
 			}
 		}
 
-	public static class PaintbrushAction implements ImageAction
+	public static class PaintbrushAction implements BoundedImageAction
 	{
-	static final int MAX_FREE_POINTS = 64;
-
 	public Canvas canvas;
 	public Color c;
-	LinkedList<Point> pts = new LinkedList<Point>();
-	BufferedImage cache;
-	int cacheX, cacheY;
+	StrokeBuffer pts = new StrokeBuffer();
 	int diameter;
-	int minX = Integer.MAX_VALUE, minY = minX, maxX = 0, maxY = 0;
+	/** The stroke so far, rasterized one segment at a time as points are added. */
+	TileSurface surface;
 
 	public PaintbrushAction(Canvas canvas, Color c, int diam)
 		{
 		this.canvas = canvas;
 		this.c = c;
 		this.diameter = diam;
-		}
-
-	protected void toCache()
-		{
-		int newMinX = minX;
-		int newMinY = minY;
-		int w = maxX - minX + 1;
-		int h = maxY - minY + 1;
-		if (cache != null)
-			{
-			newMinX = Math.min(minX,cacheX);
-			newMinY = Math.min(minY,cacheY);
-			int newMaxX = Math.max(maxX,cache.getWidth() + cacheX);
-			int newMaxY = Math.max(maxY,cache.getHeight() + cacheY);
-
-			w = newMaxX - newMinX + 1;
-			h = newMaxY - newMinY + 1;
-			}
-
-		BufferedImage newCache = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
-		Graphics g = newCache.createGraphics();
-		paint(g,-newMinX,-newMinY);
-
-		//reset our vars
-		cache = newCache;
-		cacheX = newMinX;
-		cacheY = newMinY;
-		Point p = pts.getLast();
-		pts.clear();
-		pts.add(p);
-		minX = p.x - diameter;
-		minY = p.y - diameter;
-		maxX = p.x + diameter;
-		maxY = p.y + diameter;
+		surface = new TileSurface(c,diameter);
 		}
 
 	public void add(Point p)
 		{
-		if (pts.add(p))
-			{
-			if (p.x < minX) minX = p.x - diameter;
-			else if (p.x > canvas.imageWidth()) minX = Math.min(minX,0);
-			if (p.y < minY) minY = p.y - diameter;
-			else if (p.y > canvas.imageHeight()) minY = Math.min(minY,0);
-			if (p.x > maxX) maxX = p.x + diameter;
-			if (p.y > maxY) maxY = p.y + diameter;
-			if (pts.size() > MAX_FREE_POINTS) toCache();
-			}
+		if (pts.isEmpty())
+			surface.drawLine(p.x,p.y,p.x,p.y);
+		else
+			surface.drawLine(pts.lastX(),pts.lastY(),p.x,p.y);
+		pts.add(p);
 		}
 
 	public void paint(Graphics g)
 		{
-		paint(g,0,0);
+		surface.paint(g);
 		}
-
-	public void paint(Graphics g, int shiftX, int shiftY)
+	
+	public Rectangle getBounds()
 		{
-		if (cache != null) g.drawImage(cache,cacheX + shiftX,cacheY + shiftY,null);
-		g.setColor(c);
-		Point prevPoint = pts.getFirst();
-		Graphics2D g2d = (Graphics2D) g;
-		Stroke s = g2d.getStroke();
-		//Composite cmp = g2d.getComposite();
-		g2d.setStroke(new BasicStroke(diameter,                     // Line width
-        BasicStroke.CAP_ROUND,    // End-cap style
-        BasicStroke.JOIN_ROUND));
-		// for eraser
-		//g2d.setComposite(AlphaComposite.SrcIn);
-		
-		if (canvas.renderMode != RenderMode.TILED)
-			for (Point p : pts)
-				{
-				g2d.drawLine(prevPoint.x + shiftX,prevPoint.y + shiftY,p.x + shiftX,p.y + shiftY);
-				prevPoint = p;
-				}
-		else
-			{
-			Dimension img = canvas.getImageSize();
-			for (int dx = 0; dx <= maxX + shiftX; dx += img.width)
-				for (int dy = 0; dy <= maxY + shiftY; dy += img.height)
-					{
-					for (Point p : pts)
-						{
-						g2d.drawLine(prevPoint.x + shiftX - dx,prevPoint.y + shiftY - dy,p.x + shiftX - dx,p.y
-								+ shiftY - dy);
-						prevPoint = p;
-						}
-					prevPoint = pts.getFirst();
-					}
-			}
-		//g2d.setComposite(cmp);
-		g2d.setStroke(s);
+		Rectangle r = pts.getBounds();
+		if (!r.isEmpty()) r.grow(diameter,diameter);
+		return r;
 		}
-	
+
 	public boolean copiesRaster()
 		{
 		return false;
 		}
 	}
 	
-	public static class FillAction implements HeavyImageAction
+	public static class FillAction implements HeavyImageAction, BoundedImageAction
 		{
 		Point origin;
 		int threshold;
@@ -657,23 +538,41 @@ public interface ImageAction
 
 			int rgb = c1.getRGB();
 			myCache = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+			int[] pix = Algorithm.getPixels(myCache);
 			if (c1.equals(c2))
 				{
-				for (Point p : floodFill.set)
-					myCache.setRGB(p.x - floodFill.minX,p.y - floodFill.minY,rgb);
+				paintMask(floodFill.mask,floodFill.stride,pix,rgb);
 				return myCache;
 				}
 
 			floodEdge = new EdgeDetect(floodFill,canvas);
-			if (c2 != null)
+			if (c2 != null) paintMask(floodFill.mask,floodFill.stride,pix,c2.getRGB());
+			paintMask(floodEdge.mask,floodEdge.stride,pix,rgb);
+			return myCache;
+			}
+
+		/**
+		 * Sets each pixel of our cache whose bit is set in the given fill-sized mask.
+		 */
+		private void paintMask(long[] mask, int stride, int[] pix, int rgb)
+			{
+			int x0 = floodFill.minX, x1 = floodFill.maxX;
+			int w = x1 - x0 + 1;
+			for (int y = floodFill.minY; y <= floodFill.maxY; y++)
 				{
-				int rgb2 = c2.getRGB();
-				for (Point p : floodFill.set)
-					myCache.setRGB(p.x - floodFill.minX,p.y - floodFill.minY,rgb2);
+				int row = y * stride;
+				int out = (y - floodFill.minY) * w - x0;
+				for (int i = x0 >> 6; i <= x1 >> 6; i++)
+					{
+					long bits = mask[row + i];
+					while (bits != 0)
+						{
+						int x = (i << 6) + Long.numberOfTrailingZeros(bits);
+						pix[out + x] = rgb;
+						bits &= bits - 1;
+						}
+					}
 				}
-			for (Point p : floodEdge.set)
-				myCache.setRGB(p.x - floodFill.minX,p.y - floodFill.minY,rgb);
-			return myCache;
 			}
 
 		public void recalculate(BufferedImage source)
@@ -687,6 +586,12 @@ public interface ImageAction
 			g.drawImage(getCache(),floodFill.minX,floodFill.minY,null);
 			}
 		
+		public Rectangle getBounds()
+			{
+			BufferedImage img = getCache();
+			return new Rectangle(floodFill.minX,floodFill.minY,img.getWidth(),img.getHeight());
+			}
+
 		public boolean copiesRaster()
 			{
 			return false;
@@ -0,0 +1,90 @@
+/**
+* @file  ImageOp.java
+* @brief Interface for operations which compute a new image from a whole image.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package org.jeie;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * An operation on a plain image, such as an effect or a transformation, which does not
+ * depend on the editor. Implementations hold no state that changes while applying,
+ * so one operation may be applied to several images at once from different threads.
+ */
+public interface ImageOp
+	{
+	/**
+	 * @param src The image to read. It is not modified unless it is also dst.
+	 * @param dst An image the same size as src to write the result into, or null to create one.
+	 * Operations which can work in place accept src itself.
+	 * @return The result, which is dst if it was given.
+	 */
+	BufferedImage apply(BufferedImage src, BufferedImage dst);
+
+	/**
+	 * An action which replaces the canvas image with the result of an ImageOp
+	 * applied to the image painted so far.
+	 */
+	public static abstract class Action implements ImageAction, ImageOp
+		{
+		public Canvas canvas;
+		/** The result of applying this action, computed ahead of the next paint. */
+		private BufferedImage result;
+
+		public Action(Canvas canvas)
+			{
+			this.canvas = canvas;
+			}
+
+		/**
+		 * Supplies the result of this action, computed elsewhere from the image the action
+		 * is about to be painted over, so that the next paint need only draw it. Later paints,
+		 * such as when the history is replayed, apply the action again.
+		 */
+		public void setResult(BufferedImage img)
+			{
+			result = img;
+			}
+
+		public void paint(Graphics g)
+			{
+			BufferedImage img = result;
+			result = null;
+			if (img == null) img = apply(canvas.getCompositeImage(),canvas.getScratchImage());
+
+			// replace the image outright, since drawing over even a cleared image rounds translucent pixels
+			Graphics2D g2 = (Graphics2D) g;
+			Composite comp = g2.getComposite();
+			g2.setComposite(AlphaComposite.Src);
+			g2.drawImage(img,0,0,null);
+			g2.setComposite(comp);
+			}
+
+		public boolean copiesRaster()
+			{
+			return true;
+			}
+		}
+	}
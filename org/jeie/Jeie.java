@@ -34,6 +34,7 @@ import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.GridLayout;
+import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
@@ -44,6 +45,9 @@ import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.imageio.ImageIO;
 import javax.swing.AbstractButton;
@@ -57,10 +61,14 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
+import javax.swing.JViewport;
 import javax.swing.KeyStroke;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.text.NumberFormatter;
@@ -79,7 +87,10 @@ public class Jeie implements ActionListener
 	public Palette pal;
 	private JMenuBar menuBar;
 	private JToolBar toolBar;
+	private JProgressBar progress;
+	private JButton bCancel;
 	private ToolPanel toolPanel;
+	private final ActionRunner runner = new ActionRunner();
 	public final String TITLE = "Easy Image Editor ";
 
 	public Jeie(BufferedImage image)
@@ -94,8 +105,8 @@ public class Jeie implements ActionListener
 		JPanel p = new JPanel(new BorderLayout());
 		p.add(makeToolBar(),BorderLayout.NORTH);
 		p.add(toolPanel,BorderLayout.WEST);
-		scroll.getVerticalScrollBar().setUnitIncrement(10);
-		scroll.getHorizontalScrollBar().setUnitIncrement(10);
+		//Scroll increments come from the canvas. Blitting means a scroll only repaints the newly exposed strip.
+		scroll.getViewport().setScrollMode(JViewport.BLIT_SCROLL_MODE);
 		p.add(scroll,BorderLayout.CENTER);
 		p.add(pal,BorderLayout.SOUTH);
 
@@ -190,6 +201,15 @@ public class Jeie implements ActionListener
 		bGrid = addButton(toolBar,new JToggleButton(),"GRID");
 		bGrid.setSelected(canvas.isGridDrawn);
 
+		toolBar.addSeparator();
+
+		progress = new JProgressBar(0,100);
+		progress.setMaximumSize(new Dimension(150,progress.getPreferredSize().height));
+		progress.setVisible(false);
+		toolBar.add(progress);
+		bCancel = addButton(toolBar,new JButton(),"CANCEL");
+		bCancel.setVisible(false);
+
 		return toolBar;
 		}
 
@@ -226,9 +246,8 @@ public class Jeie implements ActionListener
 
 		protected MouseEvent refactor(MouseEvent e)
 			{
-			int x = e.getX() / canvas.getZoom();
-			int y = e.getY() / canvas.getZoom();
-			return new MouseEvent((Component) e.getSource(),e.getID(),e.getWhen(),e.getModifiers(),x,y,
+			Point p = canvas.toImagePoint(e.getX(),e.getY());
+			return new MouseEvent((Component) e.getSource(),e.getID(),e.getWhen(),e.getModifiers(),p.x,p.y,
 					e.getClickCount(),e.isPopupTrigger(),e.getButton());
 			}
 
@@ -264,6 +283,203 @@ public class Jeie implements ActionListener
 			}
 		}
 
+	/**
+	 * Commits an action to the canvas. ImageOp actions, which compute a new image from the whole
+	 * image, are applied on a background thread, so that the editor stays responsive, and are only
+	 * committed once they are done. Actions are always committed in the order they are given.
+	 */
+	public void applyAction(ImageAction act)
+		{
+		runner.add(act);
+		}
+
+	/**
+	 * Runs queued actions one at a time, computing ImageOp actions in the background while the
+	 * canvas goes on showing, and accepting edits to, the image from before them.
+	 * Progress is shown in the tool bar, where the running action can be canceled.
+	 * <p>
+	 * An edit made while an action runs leaves its result out of date, so the action is canceled,
+	 * and run again on the edited image once the image has gone unchanged for a moment.
+	 * Continued editing therefore postpones the action rather than restarting it over and over.
+	 */
+	protected class ActionRunner implements ActionListener
+		{
+		/** Milliseconds the image must go unchanged before an out of date action is run again. */
+		private static final int SETTLE = 500;
+
+		/** A queued action, or, if the action is null, a redo of whichever action is next to redo by then. */
+		private class Task
+			{
+			final ImageAction act;
+
+			Task(ImageAction act)
+				{
+				this.act = act;
+				}
+			}
+
+		private final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+		private final Timer timer = new Timer(100,this);
+		private Worker worker;
+		/** Whether the first queued task went out of date, and waits for the image to settle. */
+		private boolean settling;
+		private int lastVersion;
+		private long lastChange;
+
+		public void add(ImageAction act)
+			{
+			queue.add(new Task(act));
+			runNext();
+			}
+
+		/**
+		 * Redoes the next action in the canvas's redo history, once any queued actions are done.
+		 * Redoing an ImageOp action computes it in the background, like applying it did.
+		 */
+		public void redo()
+			{
+			queue.add(new Task(null));
+			runNext();
+			}
+
+		/**
+		 * Cancels the running action, and drops any waiting after it.
+		 */
+		public void cancel()
+			{
+			queue.clear();
+			settling = false;
+			if (worker != null)
+				{
+				worker.rerun = false;
+				worker.job.cancel();
+				}
+			runNext();
+			}
+
+		/**
+		 * Notes when the canvas image last changed.
+		 */
+		private void checkVersion()
+			{
+			if (canvas.getVersion() == lastVersion) return;
+			lastVersion = canvas.getVersion();
+			lastChange = System.currentTimeMillis();
+			}
+
+		private void runNext()
+			{
+			checkVersion();
+			if (settling && System.currentTimeMillis() - lastChange >= SETTLE) settling = false;
+			while (worker == null && !settling && !queue.isEmpty())
+				{
+				Task task = queue.poll();
+				ImageAction act = task.act == null ? canvas.getNextRedo() : task.act;
+				if (act instanceof ImageOp.Action)
+					{
+					worker = new Worker((ImageOp.Action) act,task);
+					worker.execute();
+					}
+				else if (task.act == null)
+					canvas.redo();
+				else
+					canvas.commit(act);
+				}
+			boolean busy = worker != null || !queue.isEmpty();
+			progress.setValue(0);
+			progress.setVisible(busy);
+			bCancel.setVisible(busy);
+			toolBar.revalidate();
+			if (busy)
+				timer.start();
+			else
+				timer.stop();
+			}
+
+		public void actionPerformed(ActionEvent e)
+			{
+			checkVersion();
+			if (worker == null)
+				runNext();
+			else if (worker.version != lastVersion)
+				{
+				// no use finishing an action on an image which has since been edited
+				worker.rerun = true;
+				worker.job.cancel();
+				}
+			else
+				progress.setValue((int) (worker.job.getProgress() * 100));
+			}
+
+		private class Worker extends SwingWorker<BufferedImage,Void>
+			{
+			final ImageOp.Action act;
+			final Task task;
+			final Algorithm.Job job = new Algorithm.Job();
+			/** A copy of the image the action applies to, since the canvas may change meanwhile. */
+			final BufferedImage src;
+			final int version;
+			/** Whether the action should be queued again once done, because the image changed. */
+			boolean rerun;
+
+			Worker(ImageOp.Action act, Task task)
+				{
+				this.act = act;
+				this.task = task;
+				src = canvas.getRenderImage();
+				version = canvas.getVersion();
+				}
+
+			@Override
+			protected BufferedImage doInBackground()
+				{
+				Algorithm.setJob(job);
+				try
+					{
+					return act.apply(src,null);
+					}
+				finally
+					{
+					Algorithm.setJob(null);
+					}
+				}
+
+			@Override
+			protected void done()
+				{
+				worker = null;
+				BufferedImage img = null;
+				try
+					{
+					img = get();
+					}
+				catch (InterruptedException e)
+					{
+					Thread.currentThread().interrupt();
+					}
+				catch (ExecutionException e)
+					{
+					if (!(e.getCause() instanceof CancellationException)) e.printStackTrace();
+					}
+				if (rerun || (img != null && !job.isCancelled() && canvas.getVersion() != version))
+					{
+					// the image was edited while we ran, so apply the action to the new one
+					queue.addFirst(task);
+					settling = true;
+					}
+				else if (img != null && !job.isCancelled())
+					{
+					act.setResult(img);
+					if (task.act == null)
+						canvas.redo();
+					else
+						canvas.commit(act);
+					}
+				runNext();
+				}
+			}
+		}
+
 	public static void main(String[] args)
 		{
 		// java6u10 regression causes graphical xor to be very slow
@@ -307,20 +523,17 @@ public class Jeie implements ActionListener
 			}
 		if (act.equals("UNDO"))
 			{
-			if (!canvas.acts.isEmpty())
-				{
-				canvas.redoActs.addFirst(canvas.acts.removeLast());
-				canvas.redrawCache();
-				}
+			canvas.undo();
 			return;
 			}
 		if (act.equals("REDO"))
 			{
-			if (!canvas.redoActs.isEmpty())
-				{
-				canvas.acts.add(canvas.redoActs.removeFirst());
-				canvas.redrawCache();
-				}
+			runner.redo();
+			return;
+			}
+		if (act.equals("CANCEL"))
+			{
+			runner.cancel();
 			return;
 			}
 		if (act.equals("NEW"))
@@ -350,9 +563,8 @@ public class Jeie implements ActionListener
 			}
 		if (act.equals("TILED"))
 			{
-			canvas.renderMode = (canvas.renderMode != RenderMode.TILED) ? RenderMode.TILED
-					: RenderMode.NORMAL;
-			canvas.repaint();
+			canvas.setRenderMode(canvas.renderMode != RenderMode.TILED ? RenderMode.TILED
+					: RenderMode.NORMAL);
 			}
 		if (act.equals("GRID"))
 			{
@@ -410,6 +622,7 @@ public class Jeie implements ActionListener
 		//TODO: Ask for sizes
 		file = null;
 		BufferedImage img = createWhiteBufferedImage(width,height);
+		runner.cancel();
 		canvas.setImage(img);
 		scroll.updateUI();
 		updateTitle();
@@ -454,6 +667,7 @@ public class Jeie implements ActionListener
 		try
 			{
 			BufferedImage img = ImageIO.read(f);
+			runner.cancel();
 			canvas.setImage(img);
 			file = f;
 			scroll.updateUI();
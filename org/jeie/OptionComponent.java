@@ -82,6 +82,12 @@ public class OptionComponent
 			return FillType.BOTH;
 			}
 
+		/**
+		 * The color tolerance (0-255) for tools which match colors, such as flood fill.
+		 * Tools which want it can show it with <code>createToleranceSpinner</code>.
+		 */
+		public final SpinnerNumberModel tolerance = new SpinnerNumberModel(0,0,255,1);
+
 		public FillOptions()
 			{
 			super(new ImageIcon[] { getBrushIcon("OUTLINE"),getBrushIcon("OUTLINE_FILL"),
@@ -90,6 +96,19 @@ public class OptionComponent
 			setSelectedIndex(0);
 			}
 
+		public int getTolerance()
+			{
+			return (Integer) tolerance.getValue();
+			}
+
+		public JSpinner createToleranceSpinner()
+			{
+			JSpinner spinner = new JSpinner(tolerance);
+			spinner.setMaximumSize(new Dimension(48,19));
+			spinner.setToolTipText(Resources.getString("OptionComponent.TOLERANCE"));
+			return spinner;
+			}
+
 		public void select(FillType fill)
 			{
 			switch (fill)
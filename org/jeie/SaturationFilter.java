@@ -24,11 +24,22 @@
 
 package org.jeie;
 
+import java.awt.image.BufferedImage;
 import java.awt.image.RGBImageFilter;
 
-public class SaturationFilter extends RGBImageFilter
+public class SaturationFilter extends RGBImageFilter implements Algorithm.PointOp
 {
 	float amt;
+
+	/** Weights of r*r, g*g and b*b in the perceived brightness, scaled by 1024. */
+	private static final int WEIGHT_R = 306, WEIGHT_G = 601, WEIGHT_B = 117;
+	/** Square roots of every possible weighted sum of squares, scaled back down by 1024. */
+	private static final float[] ROOTS = new float[255 * 255 + 1];
+	static
+		{
+		for (int i = 0; i < ROOTS.length; i++)
+			ROOTS[i] = (float) Math.sqrt(i);
+		}
 	
 	public SaturationFilter(float a)
 		{
@@ -42,13 +53,18 @@ public class SaturationFilter extends RGBImageFilter
 	
 	//Algorithm from <http://alienryderflex.com/saturation.html>
 	public int filterRGB(int x, int y, int rgb)
+		{
+		return filter(rgb);
+		}
+
+	public int filter(int rgb)
 		{
 		int a = (rgb >> 24) & 0xFF;
 		int r = (rgb >> 16) & 0xFF;
 		int g = (rgb >> 8) & 0xFF;
 		int b = rgb & 0xFF;
 		
-		float p = (float) Math.sqrt(r * r * .299f + g * g * .587f + b * b * .114f);
+		float p = ROOTS[(r * r * WEIGHT_R + g * g * WEIGHT_G + b * b * WEIGHT_B + 512) >> 10];
 		
 		r = (int) Math.max(Math.min(p + (r - p) * amt, 255), 0);
 		g = (int) Math.max(Math.min(p + (g - p) * amt, 255), 0);
@@ -56,5 +72,28 @@ public class SaturationFilter extends RGBImageFilter
 		
 		return (a << 24) | (r << 16) | (g << 8) | b; 
 		}
+
+	/**
+	 * Filters every pixel of an image straight from its pixel array, in parallel bands of rows.
+	 * @param dst The image to write into, or null to create one. May be src itself.
+	 * @return The filtered image.
+	 */
+	public BufferedImage filter(BufferedImage src, BufferedImage dst)
+		{
+		final int w = src.getWidth(), h = src.getHeight();
+		dst = Algorithm.getDestination(dst,w,h);
+		final int[] in = Algorithm.getPixels(src);
+		final int[] out = dst == src ? in : Algorithm.getPixels(dst);
+		Algorithm.forEachBand(new Algorithm.RowKernel()
+			{
+				public void run(int y0, int y1)
+					{
+					for (int i = y0 * w; i < y1 * w; i++)
+						out[i] = filter(in[i]);
+					}
+			},w,h);
+		Algorithm.setPixels(dst,out);
+		return dst;
+		}
 		
 }
@@ -0,0 +1,99 @@
+/**
+* @file  StrokeBuffer.java
+* @brief Growable list of stroke points, packed into a primitive array.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package org.jeie;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * The points of a stroke, stored as interleaved x and y coordinates in one
+ * growable int array, so that adding a point allocates nothing in the common case.
+ * The bounding box of the points is kept as they are added.
+ */
+public class StrokeBuffer
+	{
+	private int[] xy = new int[64];
+	private int size;
+	public int minX = Integer.MAX_VALUE, minY = minX, maxX = Integer.MIN_VALUE, maxY = maxX;
+
+	/**
+	 * Appends a point to the stroke.
+	 * @return Always true, like Collection.add.
+	 */
+	public boolean add(int x, int y)
+		{
+		if (size * 2 == xy.length) xy = Arrays.copyOf(xy,xy.length * 2);
+		xy[size * 2] = x;
+		xy[size * 2 + 1] = y;
+		size++;
+		if (x < minX) minX = x;
+		if (x > maxX) maxX = x;
+		if (y < minY) minY = y;
+		if (y > maxY) maxY = y;
+		return true;
+		}
+
+	public boolean add(Point p)
+		{
+		return add(p.x,p.y);
+		}
+
+	public int size()
+		{
+		return size;
+		}
+
+	public boolean isEmpty()
+		{
+		return size == 0;
+		}
+
+	public int lastX()
+		{
+		return xy[size * 2 - 2];
+		}
+
+	public int lastY()
+		{
+		return xy[size * 2 - 1];
+		}
+
+	/**
+	 * @return Whether the stroke is not empty and its last point is p.
+	 */
+	public boolean endsAt(Point p)
+		{
+		return size > 0 && lastX() == p.x && lastY() == p.y;
+		}
+
+	/**
+	 * @return The bounding box of the points, inclusive of the last row and column,
+	 * or an empty rectangle if there are none.
+	 */
+	public Rectangle getBounds()
+		{
+		if (size == 0) return new Rectangle();
+		return new Rectangle(minX,minY,maxX - minX + 1,maxY - minY + 1);
+		}
+	}
@@ -0,0 +1,218 @@
+/**
+* @file  TileSurface.java
+* @brief Unbounded drawing surface made of tiles which are allocated as they are drawn on.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package org.jeie;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A transparent drawing surface with no fixed bounds, stored as square tiles
+ * which are only allocated once something is drawn on them. Growing the surface
+ * never copies what was already drawn, so strokes can be rasterized into it
+ * segment by segment as they are made.
+ * <p>
+ * Small opaque round brushes skip the stroker entirely and stamp a precomputed
+ * mask of the brush along each line, writing straight into the tile pixels.
+ */
+public class TileSurface
+	{
+	public static final int TILE = 128;
+
+	private static class Tile
+		{
+		final int x, y;
+		final BufferedImage image;
+		private int[] pixels;
+
+		Tile(int x, int y)
+			{
+			this.x = x;
+			this.y = y;
+			image = new BufferedImage(TILE,TILE,BufferedImage.TYPE_INT_ARGB);
+			}
+
+		int[] getPixels()
+			{
+			if (pixels == null) pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			return pixels;
+			}
+		}
+
+	private final HashMap<Long,Tile> tiles = new HashMap<Long,Tile>();
+	private final Color color;
+	private final Stroke stroke;
+	/** How far the stroke may reach beyond the line it draws. */
+	private final int pad;
+	/** The brush mask stamped along lines as given by Brushes.getRoundMask, or null to stroke them. */
+	private final int[] mask;
+	private final int argb;
+	/** The tile most recently drawn on. */
+	private Tile last;
+
+	/**
+	 * @param color The color lines are drawn in.
+	 * @param stroke The stroke lines are drawn with, which should be a BasicStroke
+	 * so that the tiles it reaches can be worked out from its width.
+	 */
+	public TileSurface(Color color, Stroke stroke)
+		{
+		this(color,stroke,null);
+		}
+
+	/**
+	 * Creates a surface drawn on with a round brush, stamped if it is small and opaque.
+	 * @param color The color lines are drawn in.
+	 * @param diameter The diameter of the brush.
+	 */
+	public TileSurface(Color color, int diameter)
+		{
+		this(color,Brushes.getRound(diameter),color.getAlpha() == 255 ? Brushes.getRoundMask(diameter) : null);
+		}
+
+	private TileSurface(Color color, Stroke stroke, int[] mask)
+		{
+		this.color = color;
+		this.stroke = stroke;
+		this.mask = mask;
+		argb = color.getRGB();
+		float width = stroke instanceof BasicStroke ? ((BasicStroke) stroke).getLineWidth() : TILE;
+		pad = (int) Math.ceil(width) + 1;
+		}
+
+	/**
+	 * Draws a line onto every tile it touches, allocating tiles as needed.
+	 */
+	public void drawLine(int x1, int y1, int x2, int y2)
+		{
+		if (mask != null)
+			{
+			stampLine(x1,y1,x2,y2);
+			return;
+			}
+		int tx1 = Math.min(x1,x2) - pad, tx2 = Math.max(x1,x2) + pad;
+		int ty1 = Math.min(y1,y2) - pad, ty2 = Math.max(y1,y2) + pad;
+		Rectangle reach = new Rectangle(TILE + pad * 2,TILE + pad * 2);
+		for (int ty = floorDiv(ty1); ty <= floorDiv(ty2); ty++)
+			for (int tx = floorDiv(tx1); tx <= floorDiv(tx2); tx++)
+				{
+				// skip the tiles of the bounding box which a diagonal line passes by
+				reach.setLocation(tx * TILE - pad,ty * TILE - pad);
+				if (reach.intersectsLine(x1,y1,x2,y2)) strokeLine(getTile(tx,ty),x1,y1,x2,y2);
+				}
+		}
+
+	private void strokeLine(Tile t, int x1, int y1, int x2, int y2)
+		{
+		Graphics2D g = t.image.createGraphics();
+		g.translate(-t.x,-t.y);
+		g.setColor(color);
+		g.setStroke(stroke);
+		g.drawLine(x1,y1,x2,y2);
+		g.dispose();
+		}
+
+	/**
+	 * Stamps the brush mask at every point of a Bresenham line.
+	 */
+	private void stampLine(int x1, int y1, int x2, int y2)
+		{
+		int dx = Math.abs(x2 - x1), dy = -Math.abs(y2 - y1);
+		int sx = x1 < x2 ? 1 : -1, sy = y1 < y2 ? 1 : -1;
+		int err = dx + dy;
+		int x = x1, y = y1;
+		while (true)
+			{
+			stamp(x,y);
+			if (x == x2 && y == y2) break;
+			int e2 = err * 2;
+			if (e2 >= dy)
+				{
+				err += dy;
+				x += sx;
+				}
+			if (e2 <= dx)
+				{
+				err += dx;
+				y += sy;
+				}
+			}
+		}
+
+	/**
+	 * Stamps the brush mask centered on a point, split across the tiles its spans fall on.
+	 */
+	private void stamp(int x, int y)
+		{
+		for (int i = 0; i < mask.length; i += 3)
+			{
+			int py = y + mask[i];
+			int ty = floorDiv(py);
+			int row = (py - ty * TILE) * TILE;
+			int a = x + mask[i + 1], b = x + mask[i + 2];
+			for (int tx = floorDiv(a); tx <= floorDiv(b); tx++)
+				{
+				int[] pix = getTile(tx,ty).getPixels();
+				int left = tx * TILE;
+				Arrays.fill(pix,row + Math.max(a - left,0),row + Math.min(b - left,TILE - 1) + 1,argb);
+				}
+			}
+		}
+
+	private Tile getTile(int tx, int ty)
+		{
+		// consecutive spans and stamps nearly always land on the same tile
+		Tile t = last;
+		if (t != null && t.x == tx * TILE && t.y == ty * TILE) return t;
+		Long key = ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+		t = tiles.get(key);
+		if (t == null)
+			{
+			t = new Tile(tx * TILE,ty * TILE);
+			tiles.put(key,t);
+			}
+		return last = t;
+		}
+
+	private static int floorDiv(int a)
+		{
+		return a >= 0 ? a / TILE : -((TILE - 1 - a) / TILE);
+		}
+
+	/**
+	 * Draws every tile which falls within the graphics clip.
+	 */
+	public void paint(Graphics g)
+		{
+		Rectangle clip = g.getClipBounds();
+		for (Tile t : tiles.values())
+			if (clip == null || clip.intersects(t.x,t.y,TILE,TILE)) g.drawImage(t.image,t.x,t.y,null);
+		}
+	}
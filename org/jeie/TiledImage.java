@@ -0,0 +1,135 @@
+/**
+* @file  TiledImage.java
+* @brief Immutable tiled copy of an image, sharing unchanged tiles with earlier copies.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package org.jeie;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * A copy of an ARGB image, stored as square tiles of pixels. Tiles are never modified
+ * once stored, so a copy taken after a small change can share every other tile with
+ * the copy it was changed from, and only costs memory for the tiles that differ.
+ * <p>
+ * Pixels are read and written through the raster's data elements rather than its
+ * backing array, so that the image stays eligible for hardware acceleration.
+ */
+public class TiledImage
+	{
+	public static final int TILE = 256;
+	private static final int[] EMPTY = new int[TILE * TILE];
+
+	public final int width, height;
+	private final int cols, rows;
+	/** Row-major tiles; a null tile is fully transparent. */
+	private final int[][] tiles;
+
+	/**
+	 * Copies an image into tiles.
+	 * @param img The TYPE_INT_ARGB image to copy.
+	 * @param base An earlier copy the image was painted from, or null if it was painted from
+	 * a transparent image. Must be the same size.
+	 * @param dirty The region painted since <code>base</code>, or null if unknown. Tiles
+	 * outside of it are taken from <code>base</code> without being read. Tiles inside of it
+	 * are still shared if they turn out to be unchanged.
+	 */
+	public TiledImage(BufferedImage img, TiledImage base, Rectangle dirty)
+		{
+		width = img.getWidth();
+		height = img.getHeight();
+		cols = (width + TILE - 1) / TILE;
+		rows = (height + TILE - 1) / TILE;
+		tiles = new int[cols * rows][];
+		WritableRaster r = img.getRaster();
+		for (int ty = 0; ty < rows; ty++)
+			for (int tx = 0; tx < cols; tx++)
+				{
+				int i = ty * cols + tx;
+				int x = tx * TILE, y = ty * TILE;
+				int w = Math.min(TILE,width - x), h = Math.min(TILE,height - y);
+				int[] old = base == null ? null : base.tiles[i];
+				if (dirty != null && !dirty.intersects(x,y,w,h))
+					{
+					tiles[i] = old;
+					continue;
+					}
+				int[] pix = (int[]) r.getDataElements(x,y,w,h,null);
+				if (old == null ? isEmpty(pix) : Arrays.equals(pix,old))
+					tiles[i] = old;
+				else
+					tiles[i] = pix;
+				}
+		}
+
+	private static boolean isEmpty(int[] pix)
+		{
+		for (int p : pix)
+			if (p != 0) return false;
+		return true;
+		}
+
+	/**
+	 * Writes this copy into an image known to hold another copy with some region painted over it,
+	 * skipping the tiles the two copies share, which are already in place.
+	 * @param img An image of the same size.
+	 * @param current The copy the image was last made to match, or null if it was cleared.
+	 * @param dirty The region painted onto the image since then, or null if unknown.
+	 * @return The region of the image which was written.
+	 */
+	public Rectangle drawTo(BufferedImage img, TiledImage current, Rectangle dirty)
+		{
+		if (current != null && (current.width != width || current.height != height)) dirty = null;
+		WritableRaster r = img.getRaster();
+		Rectangle written = new Rectangle();
+		for (int ty = 0; ty < rows; ty++)
+			for (int tx = 0; tx < cols; tx++)
+				{
+				int i = ty * cols + tx;
+				int[] pix = tiles[i];
+				int x = tx * TILE, y = ty * TILE;
+				int w = Math.min(TILE,width - x), h = Math.min(TILE,height - y);
+				if (dirty != null && !dirty.intersects(x,y,w,h) && pix == (current == null ? null : current.tiles[i]))
+					continue;
+				r.setDataElements(x,y,w,h,pix == null ? EMPTY : pix);
+				Rectangle t = new Rectangle(x,y,w,h);
+				written = written.isEmpty() ? t : written.union(t);
+				}
+		return written;
+		}
+
+	/**
+	 * Counts the memory held by the tiles of this copy which have not been counted already,
+	 * so that the size of several copies sharing tiles can be totalled.
+	 * @param seen The tiles counted so far. Tiles of this copy are added to it.
+	 * @return The number of bytes held by tiles not previously in <code>seen</code>.
+	 */
+	public long getSize(Set<int[]> seen)
+		{
+		long size = 0;
+		for (int[] t : tiles)
+			if (t != null && seen.add(t)) size += 4L * t.length;
+		return size;
+		}
+	}
@@ -101,17 +101,15 @@ public interface Tool
 
 		/**
 		 * Implemented to simply commit <code>active</code> and reset it.
-		 * Also resets canvas.active and redraws the canvas cache.
+		 * Also resets canvas.active. Only the committed action is painted onto the canvas cache.
 		 * @param c The Canvas on which we are operating.
 		 * @param p The current Palette.
 		 */
 		public void finish(Canvas c, Palette p)
 			{
 			if (active == null) return;
-			c.acts.add(active);
+			c.commit(active);
 			c.active = active = null;
-			c.redoActs.clear();
-			c.redrawCache();
 			}
 
 		/**
@@ -322,9 +320,9 @@ public interface Tool
 			if (active != null)
 				{
 				Point pt = e.getPoint();
-				if (!active.pts.isEmpty() && active.pts.getLast().equals(pt)) return;
+				if (active.pts.endsAt(pt)) return;
 				Rectangle r = new Rectangle(pt);
-				if (!active.pts.isEmpty()) r.add(active.pts.getLast());
+				if (!active.pts.isEmpty()) r.add(active.pts.lastX(),active.pts.lastY());
 				active.add(pt);
 				c.repaint(r);
 				}
@@ -377,13 +375,13 @@ public interface Tool
 			if (active != null)
 				{
 				Point pt = e.getPoint();
-				if (!active.pts.isEmpty() && active.pts.getLast().equals(pt)) return;
+				if (active.pts.endsAt(pt)) return;
 				Rectangle r = new Rectangle(pt);
 				r.x -= active.diameter << 1;
 				r.y -= active.diameter << 1;
 				r.width += active.diameter << 2;
 				r.height += active.diameter << 2;
-				if (!active.pts.isEmpty()) r.add(active.pts.getLast());
+				if (!active.pts.isEmpty()) r.add(active.pts.lastX(),active.pts.lastY());
 				active.add(pt);
 				c.repaint(r);
 				}
@@ -632,6 +630,7 @@ public interface Tool
 	public static class FillTool extends GenericTool<FillAction> implements ListSelectionListener
 		{
 		FillType type;
+		private JPanel op;
 
 		public void mousePress(MouseEvent e, Canvas c, Palette p)
 			{
@@ -662,13 +661,13 @@ public interface Tool
 			switch (type)
 				{
 				case OUTLINE:
-					c.active = active = new FillAction(c, c.getRenderImage(),fp,c1,null,0,type);
+					c.active = active = new FillAction(c, c.getRenderImage(),fp,c1,null,fills.getTolerance(),type);
 					break;
 				case BOTH:
-					c.active = active = new FillAction(c, c.getRenderImage(),fp,c1,c2,0,type);
+					c.active = active = new FillAction(c, c.getRenderImage(),fp,c1,c2,fills.getTolerance(),type);
 					break;
 				case FILL:
-					c.active = active = new FillAction(c, c.getRenderImage(),fp,c1,c1,0,type);
+					c.active = active = new FillAction(c, c.getRenderImage(),fp,c1,c1,fills.getTolerance(),type);
 					break;
 				}
 
@@ -688,7 +687,11 @@ public interface Tool
 		@Override
 		public JComponent getOptionsComponent()
 			{
-			return fills;
+			op = new JPanel();
+			op.setLayout(new BoxLayout(op,BoxLayout.PAGE_AXIS));
+			op.add(fills);
+			op.add(fills.createToleranceSpinner());
+			return op;
 			}
 
 		public FillTool()
@@ -25,13 +25,9 @@
 
 package org.jeie;
 
-import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 
 import javax.swing.JMenu;
@@ -48,128 +44,79 @@ public class TransformMenu extends JMenu implements ActionListener
 	private static final long serialVersionUID = 1L;
 	public Jeie jeie;
 
-	public class Rotate implements ImageAction
+	public static class Rotate extends ImageOp.Action
 		{
 		public int angle;
 
-		public Rotate(int ang)
+		public Rotate(Canvas canvas, int ang)
 			{
+			super(canvas);
 			angle = ang;
 			}
 
-		public void paint(Graphics g)
+		public BufferedImage apply(BufferedImage src, BufferedImage dst)
 			{
-			Canvas c = jeie.canvas;
-			BufferedImage img = c.getRenderImage();
-			
-			Graphics2D g2 = (Graphics2D) g;
-			
-			//Clear the image.
-			g2.setBackground(new Color(0, 0, 0, 0));
-			g2.clearRect(0,0,img.getWidth(),img.getHeight());
-			
-			AffineTransform tr = new AffineTransform();
-			tr.rotate(angle / 180D * Math.PI, img.getWidth() / 2f,img.getHeight() / 2f);
-			AffineTransformOp op = new AffineTransformOp(tr, AffineTransformOp.TYPE_BILINEAR);
-			g2.drawImage(img,op,0,0);
-			}
-		
-		public boolean copiesRaster()
-			{
-			return true;
+			if (dst == src) dst = null;
+			AffineTransform tr;
+			// quadrant rotations are exact, so they copy pixels instead of interpolating
+			if (angle % 90 == 0)
+				tr = AffineTransform.getQuadrantRotateInstance(angle / 90,src.getWidth() / 2D,src.getHeight() / 2D);
+			else
+				tr = AffineTransform.getRotateInstance(angle / 180D * Math.PI,src.getWidth() / 2D,src.getHeight() / 2D);
+			return Algorithm.transform(src,dst,tr);
 			}
 		}
 	
-	public class Zoom implements ImageAction
+	public static class Zoom extends ImageOp.Action
 		{
 		public int amount;
 	
-		public Zoom(int amt)
+		public Zoom(Canvas canvas, int amt)
 			{
+			super(canvas);
 			amount = amt;
 			}
 	
-		public void paint(Graphics g)
+		public BufferedImage apply(BufferedImage src, BufferedImage dst)
 			{
-			Canvas c = jeie.canvas;
-			BufferedImage img = c.getRenderImage();
+			if (dst == src) dst = null;
 			float z = amount / 100f;
-			
-			Graphics2D g2 = (Graphics2D) g;
-			
-			//Clear the image.
-			g2.setBackground(new Color(0, 0, 0, 0));
-			g2.clearRect(0,0,img.getWidth(),img.getHeight());
-			
 			AffineTransform tr = new AffineTransform();
-			tr.translate(img.getWidth() * (1 - z) / 2,img.getHeight() * (1 - z) / 2);
+			tr.translate(src.getWidth() * (1 - z) / 2,src.getHeight() * (1 - z) / 2);
 			tr.scale(z, z);
-			AffineTransformOp op = new AffineTransformOp(tr, AffineTransformOp.TYPE_BILINEAR);
-			g2.drawImage(img,op,0,0);
-			}
-		
-		public boolean copiesRaster()
-			{
-			return true;
+			return Algorithm.transform(src,dst,tr);
 			}
 		}
 	
-	public class FlipH implements ImageAction
+	public static class FlipH extends ImageOp.Action
 		{
-		public void paint(Graphics g)
+		public FlipH(Canvas canvas)
 			{
-			Canvas c = jeie.canvas;
-			BufferedImage img = c.getRenderImage();
-			
-			Graphics2D g2 = (Graphics2D) g;
-			
-			//Clear the image.
-			g2.setBackground(new Color(0, 0, 0, 0));
-			g2.clearRect(0,0,img.getWidth(),img.getHeight());
-			
-			AffineTransform tr = AffineTransform.getScaleInstance(-1, 1);
-			tr.translate(-img.getWidth(), 0);
-			AffineTransformOp op = new AffineTransformOp(tr, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-			g2.drawImage(img,op,0,0);
+			super(canvas);
 			}
-		
-		public boolean copiesRaster()
+
+		public BufferedImage apply(BufferedImage src, BufferedImage dst)
 			{
-			return true;
+			return Algorithm.flipHorizontal(src,dst);
 			}
 		}
 	
-	public class FlipV implements ImageAction
+	public static class FlipV extends ImageOp.Action
 		{
-		public void paint(Graphics g)
+		public FlipV(Canvas canvas)
 			{
-			Canvas c = jeie.canvas;
-			BufferedImage img = c.getRenderImage();
-			
-			Graphics2D g2 = (Graphics2D) g;
-			
-			//Clear the image.
-			g2.setBackground(new Color(0, 0, 0, 0));
-			g2.clearRect(0,0,img.getWidth(),img.getHeight());
-			
-			AffineTransform tr = AffineTransform.getScaleInstance(1, -1);
-			tr.translate(0, -img.getHeight());
-			AffineTransformOp op = new AffineTransformOp(tr, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-			g2.drawImage(img,op,0,0);
+			super(canvas);
 			}
-		
-		public boolean copiesRaster()
+
+		public BufferedImage apply(BufferedImage src, BufferedImage dst)
 			{
-			return true;
+			return Algorithm.flipVertical(src,dst);
 			}
 		}
 
 	public void applyAction(ImageAction act)
 		{
-		Canvas c = jeie.canvas;
-		c.acts.add(act);
-		c.redoActs.clear();
-		c.redrawCache();
+		jeie.applyAction(act);
 		}
 
 	public TransformMenu(Jeie jeie)
@@ -200,23 +147,23 @@ public class TransformMenu extends JMenu implements ActionListener
 		if (act.equals("ROTATE"))
 			{
 			Integer integer = IntegerDialog.getInteger(Resources.getString("TransformMenu.ROTATION"),0,360,0,60);
-			if (integer != null) applyAction(new Rotate(integer));
+			if (integer != null) applyAction(new Rotate(jeie.canvas,integer));
 			return;
 			}
 		if (act.equalsIgnoreCase("ZOOM"))
 			{
 			Integer integer = IntegerDialog.getInteger(Resources.getString("TransformMenu.ZOOM_PERCENT"),0,400,100,100);
-			if (integer != null) applyAction(new Zoom(integer));
+			if (integer != null) applyAction(new Zoom(jeie.canvas,integer));
 			return;
 			}
 		if (act.equals("FLIP_HORIZONTALLY"))
 			{
-			applyAction(new FlipH());
+			applyAction(new FlipH(jeie.canvas));
 			return;
 			}
 		if (act.equals("FLIP_VERTICALLY"))
 			{
-			applyAction(new FlipV());
+			applyAction(new FlipV(jeie.canvas));
 			return;
 			}
 		}
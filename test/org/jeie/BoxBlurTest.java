@@ -0,0 +1,101 @@
+/**
+* @file  BoxBlurTest.java
+* @brief Tests Algorithm.boxBlur against a direct convolution.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package org.jeie;
+
+import static org.jeie.TestUtil.check;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the sliding sums of Algorithm.boxBlur with summing every box directly,
+ * over sizes and image shapes which exercise the strip splitting and the edges.
+ */
+public class BoxBlurTest
+	{
+	static BufferedImage random(int w, int h, Random rnd)
+		{
+		BufferedImage img = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+		int[] p = Algorithm.getPixels(img);
+		for (int i = 0; i < w * h; i++)
+			{
+			// include some fully transparent pixels, which must not darken their neighbours
+			p[i] = rnd.nextInt();
+			if (rnd.nextInt(4) == 0) p[i] &= 0xFFFFFF;
+			}
+		Algorithm.setPixels(img,p);
+		return img;
+		}
+
+	/**
+	 * Blurs by summing the premultiplied pixels of each box, leaving pixels
+	 * too close to the edge for a whole box unchanged. A box of one pixel changes nothing.
+	 */
+	static int[] reference(int[] in, int w, int h, int size)
+		{
+		int[] out = in.clone();
+		if (size == 1) return out;
+		int lo = size / 2, hi = (size - 1) / 2, n = size * size;
+		for (int y = lo; y < h - lo; y++)
+			for (int x = lo; x < w - lo; x++)
+				{
+				int a = 0, r = 0, g = 0, b = 0;
+				for (int j = y - lo; j <= y + hi; j++)
+					for (int i = x - lo; i <= x + hi; i++)
+						{
+						int p = in[j * w + i], pa = p >>> 24;
+						a += pa;
+						r += Algorithm.BoxBlur.premultiply((p >> 16) & 0xFF,pa);
+						g += Algorithm.BoxBlur.premultiply((p >> 8) & 0xFF,pa);
+						b += Algorithm.BoxBlur.premultiply(p & 0xFF,pa);
+						}
+				out[y * w + x] = Algorithm.BoxBlur.unpremultiply(a,r,g,b,n);
+				}
+		return out;
+		}
+
+	static void test(int w, int h, int size, Random rnd)
+		{
+		BufferedImage src = random(w,h,rnd);
+		int[] in = Algorithm.getPixels(src).clone();
+		int[] out = Algorithm.getPixels(Algorithm.boxBlur(src,null,size));
+		int[] ref = reference(in,w,h,size);
+		for (int i = 0; i < w * h; i++)
+			check(out[i] == ref[i],"size " + size + " on " + w + "x" + h + " at " + i % w + "," + i / w);
+		check(Arrays.equals(Algorithm.getPixels(src),in),"source unchanged");
+		}
+
+	public static void main(String[] args)
+		{
+		Random rnd = new Random(1);
+		int[][] shapes = { { 1, 1 }, { 4, 3 }, { 20, 20 }, { 65, 9 }, { 9, 65 }, { 200, 70 } };
+		for (int[] s : shapes)
+			for (int size = 1; size <= 9; size++)
+				test(s[0],s[1],size,rnd);
+		// a box as tall as the image
+		test(150,9,9,rnd);
+		System.out.println("BoxBlurTest passed");
+		}
+	}
@@ -0,0 +1,148 @@
+/**
+* @file  FloodFillTest.java
+* @brief Tests Algorithm.FloodFill and EdgeDetect against a direct search.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package org.jeie;
+
+import static org.jeie.TestUtil.check;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.jeie.Canvas.RenderMode;
+
+/**
+ * Compares the scanline fill, with and without tolerance and tiled wrapping,
+ * against a plain breadth-first search over the pixels.
+ */
+public class FloodFillTest
+	{
+	/**
+	 * An image of a few colors, each varied slightly, so that tolerance decides what joins up.
+	 */
+	static BufferedImage random(int w, int h, Random rnd)
+		{
+		int[] palette = { 0xFF000000, 0xFFFFFFFF, 0x80FF0000, 0x00000000 };
+		BufferedImage img = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+		int[] p = Algorithm.getPixels(img);
+		for (int i = 0; i < w * h; i++)
+			{
+			int c = palette[rnd.nextInt(10) < 7 ? 0 : rnd.nextInt(palette.length)];
+			if (c != 0 && rnd.nextBoolean()) c ^= rnd.nextInt(8) << (rnd.nextInt(3) * 8);
+			p[i] = c;
+			}
+		Algorithm.setPixels(img,p);
+		return img;
+		}
+
+	static boolean matches(int a, int b, int threshold)
+		{
+		for (int s = 0; s < 32; s += 8)
+			if (Math.abs(((a >>> s) & 0xFF) - ((b >>> s) & 0xFF)) > threshold) return false;
+		return true;
+		}
+
+	static boolean[] reference(int[] pix, int w, int h, Point p, int threshold, boolean tiled)
+		{
+		boolean[] in = new boolean[w * h];
+		int target = pix[p.y * w + p.x];
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		queue.add(p.y * w + p.x);
+		in[p.y * w + p.x] = true;
+		int[][] dirs = { { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 } };
+		while (!queue.isEmpty())
+			{
+			int i = queue.poll(), x = i % w, y = i / w;
+			for (int[] d : dirs)
+				{
+				int nx = x + d[0], ny = y + d[1];
+				if (tiled)
+					{
+					nx = (nx + w) % w;
+					ny = (ny + h) % h;
+					}
+				else if (nx < 0 || ny < 0 || nx >= w || ny >= h) continue;
+				int n = ny * w + nx;
+				if (in[n] || !matches(pix[n],target,threshold)) continue;
+				in[n] = true;
+				queue.add(n);
+				}
+			}
+		return in;
+		}
+
+	static boolean isEdge(boolean[] in, int w, int h, int x, int y, boolean tiled)
+		{
+		int[][] dirs = { { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 } };
+		for (int[] d : dirs)
+			{
+			int nx = x + d[0], ny = y + d[1];
+			if (tiled)
+				{
+				nx = (nx + w) % w;
+				ny = (ny + h) % h;
+				}
+			else if (nx < 0 || ny < 0 || nx >= w || ny >= h) return true;
+			if (!in[ny * w + nx]) return true;
+			}
+		return false;
+		}
+
+	static void test(int w, int h, int threshold, boolean tiled, Random rnd)
+		{
+		Canvas c = new Canvas(new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB));
+		c.renderMode = tiled ? RenderMode.TILED : RenderMode.NORMAL;
+		BufferedImage img = random(w,h,rnd);
+		int[] pix = Algorithm.getPixels(img).clone();
+		Point p = new Point(rnd.nextInt(w),rnd.nextInt(h));
+		String where = w + "x" + h + " threshold " + threshold + (tiled ? " tiled" : "");
+
+		Algorithm.FloodFill fill = new Algorithm.FloodFill(c,img,p,threshold);
+		boolean[] ref = reference(pix,w,h,p,threshold,tiled);
+		Algorithm.EdgeDetect edge = new Algorithm.EdgeDetect(fill,c);
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++)
+				{
+				check(fill.contains(x,y) == ref[y * w + x],"fill at " + x + "," + y + " on " + where);
+				boolean e = ref[y * w + x] && isEdge(ref,w,h,x,y,tiled);
+				check(edge.contains(x,y) == e,"edge at " + x + "," + y + " on " + where);
+				}
+		}
+
+	public static void main(String[] args)
+		{
+		Random rnd = new Random(2);
+		// widths either side of a 64 pixel word
+		int[][] shapes = { { 1, 1 }, { 5, 4 }, { 63, 20 }, { 64, 20 }, { 65, 20 }, { 130, 40 } };
+		int[] thresholds = { 0, 3, 7, 255 };
+		for (int[] s : shapes)
+			for (int t : thresholds)
+				for (int i = 0; i < 4; i++)
+					{
+					test(s[0],s[1],t,false,rnd);
+					test(s[0],s[1],t,true,rnd);
+					}
+		System.out.println("FloodFillTest passed");
+		}
+	}
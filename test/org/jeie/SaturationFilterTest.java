@@ -0,0 +1,81 @@
+/**
+* @file  SaturationFilterTest.java
+* @brief Tests the square root table of SaturationFilter against the direct formula.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package org.jeie;
+
+import static org.jeie.TestUtil.check;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Checks that looking up the brightness in a table of square roots stays within one level
+ * of computing it directly, over the range the editor's dialog allows.
+ */
+public class SaturationFilterTest
+	{
+	static int channel(float p, int c, float amt)
+		{
+		return (int) Math.max(Math.min(p + (c - p) * amt,255),0);
+		}
+
+	/** The filter as it was written before the table. */
+	static int reference(int rgb, float amt)
+		{
+		int r = (rgb >> 16) & 0xFF, g = (rgb >> 8) & 0xFF, b = rgb & 0xFF;
+		float p = (float) Math.sqrt(r * r * .299f + g * g * .587f + b * b * .114f);
+		return (rgb & 0xFF000000) | (channel(p,r,amt) << 16) | (channel(p,g,amt) << 8) | channel(p,b,amt);
+		}
+
+	public static void main(String[] args)
+		{
+		for (int percent = 0; percent <= 200; percent += 25)
+			{
+			float amt = percent / 100f;
+			SaturationFilter f = new SaturationFilter(amt);
+			for (int c = 0; c < 1 << 24; c += 13)
+				{
+				int rgb = ((c * 31) & 0xFF000000) | c, q = f.filter(rgb), e = reference(rgb,amt);
+				check(q >>> 24 == rgb >>> 24,"alpha kept for " + Integer.toHexString(rgb));
+				for (int s = 0; s < 24; s += 8)
+					check(Math.abs(((q >> s) & 0xFF) - ((e >> s) & 0xFF)) <= 1,
+							"within one level at " + percent + "% for " + Integer.toHexString(rgb));
+				if (percent == 100) check(q == rgb,"unchanged at 100% for " + Integer.toHexString(rgb));
+				}
+			}
+
+		// filtering an image gives the same as filtering each pixel, including in place
+		Random rnd = new Random(4);
+		BufferedImage img = new BufferedImage(70,50,BufferedImage.TYPE_INT_ARGB);
+		int[] p = Algorithm.getPixels(img);
+		for (int i = 0; i < p.length; i++)
+			p[i] = rnd.nextInt();
+		Algorithm.setPixels(img,p);
+		int[] in = p.clone();
+		SaturationFilter f = new SaturationFilter(1.5f);
+		int[] out = Algorithm.getPixels(f.filter(img,img));
+		for (int i = 0; i < in.length; i++)
+			check(out[i] == f.filter(in[i]),"image filtered in place at " + i);
+		System.out.println("SaturationFilterTest passed");
+		}
+	}
@@ -0,0 +1,59 @@
+/**
+* @file  StrokeBufferTest.java
+* @brief Tests growth and bounds of StrokeBuffer.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package org.jeie;
+
+import static org.jeie.TestUtil.check;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.Random;
+
+/**
+ * Checks StrokeBuffer against the points added to it, past several growths of its array.
+ */
+public class StrokeBufferTest
+	{
+	public static void main(String[] args)
+		{
+		StrokeBuffer s = new StrokeBuffer();
+		check(s.isEmpty() && s.getBounds().isEmpty(),"empty to start");
+		check(!s.endsAt(new Point(0,0)),"an empty stroke ends nowhere");
+
+		Random rnd = new Random(6);
+		int n = 1000;
+		Rectangle bounds = null;
+		for (int i = 0; i < n; i++)
+			{
+			int x = rnd.nextInt(2000) - 1000, y = rnd.nextInt(2000) - 1000;
+			s.add(new Point(x,y));
+			Rectangle r = new Rectangle(x,y,1,1);
+			bounds = bounds == null ? r : bounds.union(r);
+			check(s.getBounds().equals(bounds),"bounds after " + (i + 1) + " points");
+			check(s.lastX() == x && s.lastY() == y,"last point after " + (i + 1) + " points");
+			check(s.endsAt(new Point(x,y)),"ends at point " + i);
+			}
+		check(s.size() == n,"size");
+		System.out.println("StrokeBufferTest passed");
+		}
+	}
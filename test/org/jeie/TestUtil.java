@@ -0,0 +1,43 @@
+/**
+* @file  TestUtil.java
+* @brief Assertions shared by the tests.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+package org.jeie;
+
+/**
+ * Helpers shared by the tests, which are plain classes run through their main methods
+ * and fail by throwing an AssertionError, so that they need no assertions enabled.
+ */
+public final class TestUtil
+	{
+	private TestUtil()
+		{
+		}
+
+	/**
+	 * @param ok The condition which should hold.
+	 * @param what What is being checked, to report if it does not hold.
+	 */
+	public static void check(boolean ok, String what)
+		{
+		if (!ok) throw new AssertionError(what);
+		}
+	}
@@ -0,0 +1,111 @@
+/**
+* @file  TiledImageTest.java
+* @brief Tests tile sharing and restoring in TiledImage.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package org.jeie;
+
+import static org.jeie.TestUtil.check;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Checks that copies share the tiles a change did not touch, and that restoring a copy
+ * over the image it was changed from rewrites only the changed tiles.
+ */
+public class TiledImageTest
+	{
+	static final int T = TiledImage.TILE;
+
+	static void fill(BufferedImage img, Color c, Rectangle r)
+		{
+		Graphics2D g = img.createGraphics();
+		g.setColor(c);
+		g.fill(r);
+		g.dispose();
+		}
+
+	static boolean same(BufferedImage a, BufferedImage b)
+		{
+		for (int y = 0; y < a.getHeight(); y++)
+			for (int x = 0; x < a.getWidth(); x++)
+				if (a.getRGB(x,y) != b.getRGB(x,y)) return false;
+		return true;
+		}
+
+	static long size(TiledImage... copies)
+		{
+		Set<int[]> seen = Collections.newSetFromMap(new IdentityHashMap<int[],Boolean>());
+		long total = 0;
+		for (TiledImage c : copies)
+			total += c.getSize(seen);
+		return total;
+		}
+
+	public static void main(String[] args)
+		{
+		// partial tiles on the right and bottom
+		int w = T * 3 + 17, h = T * 2 + 5;
+		BufferedImage img = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+		TiledImage blank = new TiledImage(img,null,null);
+		check(size(blank) == 0,"transparent tiles take no memory");
+
+		Rectangle r1 = new Rectangle(10,10,20,20);
+		fill(img,Color.RED,r1);
+		TiledImage one = new TiledImage(img,blank,r1);
+		check(size(blank,one) == 4L * T * T,"one changed tile");
+
+		// the dirty region may be larger than the change, and unchanged tiles in it are still shared
+		Rectangle r2 = new Rectangle(w - 3,h - 3,3,3);
+		fill(img,Color.BLUE,r2);
+		TiledImage two = new TiledImage(img,one,new Rectangle(0,0,w,h));
+		check(size(one,two) == 4L * T * T + 4L * 17 * 5,"one full and one partial tile");
+		BufferedImage expected = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+		two.drawTo(expected,null,null);
+		check(same(expected,img),"full restore");
+
+		// paint over the image, then restore the copy it was taken from
+		Rectangle r3 = new Rectangle(T + 1,T + 1,5,5);
+		fill(img,Color.GREEN,r3);
+		Rectangle written = two.drawTo(img,two,r3);
+		check(written.equals(new Rectangle(T,T,T,T)),"only the painted tile is written: " + written);
+		check(same(expected,img),"restore of the painted tile");
+
+		// restoring an earlier copy also rewrites the tiles the two copies do not share
+		written = one.drawTo(img,two,new Rectangle());
+		check(written.equals(new Rectangle(T * 3,T * 2,17,5)),"only the differing tile is written: " + written);
+		BufferedImage first = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+		fill(first,Color.RED,r1);
+		check(same(first,img),"restore of an earlier copy");
+
+		// an unknown dirty region rewrites everything
+		written = blank.drawTo(img,one,null);
+		check(written.equals(new Rectangle(0,0,w,h)),"unknown region writes all tiles");
+		check(same(new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB),img),"restore of a blank copy");
+		System.out.println("TiledImageTest passed");
+		}
+	}
@@ -0,0 +1,95 @@
+/**
+* @file  TransformTest.java
+* @brief Tests the bounds and exact cases of Algorithm.transform.
+*
+* @section License
+*
+* This file is a part of JEIE.
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+package org.jeie;
+
+import static org.jeie.TestUtil.check;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * Checks which destination pixels Algorithm.transform samples from inside the source,
+ * including images too wide for 16.16 fixed point in an int.
+ */
+public class TransformTest
+	{
+	static BufferedImage opaque(int w, int h)
+		{
+		BufferedImage img = new BufferedImage(w,h,BufferedImage.TYPE_INT_ARGB);
+		int[] p = Algorithm.getPixels(img);
+		for (int i = 0; i < w * h; i++)
+			p[i] = 0xFF000000 | (i * 0x010305 & 0xFFFFFF);
+		Algorithm.setPixels(img,p);
+		return img;
+		}
+
+	/**
+	 * Translating by a quarter pixel keeps every pixel center within half a pixel of the source,
+	 * so nothing may come out transparent, while three quarters drops the first column.
+	 */
+	static void testEdges(int w, int h)
+		{
+		BufferedImage src = opaque(w,h);
+		int[] out = Algorithm.getPixels(Algorithm.transform(src,null,
+				AffineTransform.getTranslateInstance(0.25,0)));
+		for (int y = 0; y < h; y++)
+			{
+			check(out[y * w] >>> 24 == 0xFF,"first column kept at width " + w);
+			check(out[y * w + w - 1] >>> 24 == 0xFF,"last column kept at width " + w);
+			}
+
+		out = Algorithm.getPixels(Algorithm.transform(src,null,AffineTransform.getTranslateInstance(0.75,0)));
+		for (int y = 0; y < h; y++)
+			{
+			check(out[y * w] == 0,"first column dropped at width " + w);
+			check(out[y * w + 1] >>> 24 == 0xFF,"second column kept at width " + w);
+			check(out[y * w + w - 1] >>> 24 == 0xFF,"last column kept at width " + w);
+			}
+		}
+
+	/**
+	 * Quarter turns about the center of a square image move whole pixels, so they must be exact.
+	 */
+	static void testQuarterTurn(int s)
+		{
+		BufferedImage src = opaque(s,s);
+		int[] in = Algorithm.getPixels(src);
+		int[] out = Algorithm.getPixels(Algorithm.transform(src,null,
+				AffineTransform.getQuadrantRotateInstance(1,s / 2.0,s / 2.0)));
+		for (int y = 0; y < s; y++)
+			for (int x = 0; x < s; x++)
+				check(out[y * s + x] == in[(s - 1 - x) * s + y],"quarter turn at " + x + "," + y);
+		}
+
+	public static void main(String[] args)
+		{
+		testEdges(7,5);
+		testEdges(200,70);
+		// wide enough that w << 16 overflows an int
+		testEdges(40000,1);
+		testQuarterTurn(9);
+		testQuarterTurn(130);
+		System.out.println("TransformTest passed");
+		}
+	}